@@ -28,7 +28,6 @@ package moe.lymia.lua;
 
 import java.io.PrintStream;
 import java.io.Reader;
-import java.util.Enumeration;
 
 /**
  * Contains Lua's base library.  The base library is generally
@@ -313,16 +312,14 @@ public final class BaseLib {
 
     /**
      * Implements pairs.  PUC-Rio uses "next" as the generator for pairs.
-     * Jill doesn't do that because it would be way too slow.  We use the
-     * {@link Enumeration} returned from
-     * {@link java.util.Hashtable#keys}.  The {@link #pairsaux} method
-     * implements the step-by-step iteration.
+     * Jill doesn't do that as next has to find the previous key again
+     * on every step.  Instead the state is an {@link Enum} cursor over
+     * the table, and {@link #pairsaux} steps it.
      */
     private static int pairs(Lua L) {
         L.checkType(1, Lua.TTABLE);
         L.push((LuaJavaCallback) BaseLib::pairsaux);                   // return generator,
-        LuaTable t = (LuaTable) L.value(1);
-        L.push(new Object[]{t, t.keys()});   // state,
+        L.push(new Enum((LuaTable) L.value(1)));    // state,
         L.push(Lua.NIL);                            // and initial value.
         return 3;
     }
@@ -330,26 +327,23 @@ public final class BaseLib {
     /**
      * Generator for pairs.  This expects a <var>state</var> and
      * <var>var</var> as (Lua) arguments.
-     * The state is setup by {@link #pairs} and is a
-     * pair of {LuaTable, Enumeration} stored in a 2-element array.  The
+     * The state is setup by {@link #pairs} and is the {@link Enum}
+     * cursor for the table.  The
      * <var>var</var> is not used.  This is in contrast to the PUC-Rio
      * implementation, where the state is the table, and the var is used
      * to generated the next key in sequence.  The implementation, of
      * pairs and pairsaux, has no control over <var>var</var>,  Lua's
      * semantics of <code>for</code> force it to be the previous result
-     * returned by this function.  In Jill this value is not suitable to
-     * use for enumeration, which is why it isn't used.
+     * returned by this function.  The cursor already knows where it is,
+     * so using it would only cost another lookup.
      */
     private static int pairsaux(Lua L) {
-        Object[] a = (Object[]) L.value(1);
-        LuaTable t = (LuaTable) a[0];
-        Enumeration e = (Enumeration) a[1];
-        if (!e.hasMoreElements()) {
+        Enum e = (Enum) L.value(1);
+        if (!e.advance()) {
             return 0;
         }
-        Object key = e.nextElement();
-        L.push(key);
-        L.push(t.getlua(key));
+        L.push(e.key());
+        L.push(e.value());
         return 2;
     }
 
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package moe.lymia.lua;
+
+/**
+ * Base class of the classes generated by {@link ProtoCompiler}.  This
+ * class is internal to Jill and should not be used by clients.
+ */
+abstract class CompiledProto {
+    /**
+     * Constants of the compiled {@link Proto}.
+     */
+    Slot[] k;
+    /**
+     * Inline caches of the compiled {@link Proto}, indexed by pc.
+     */
+    InlineCache[] caches;
+
+    /**
+     * Runs the compiled code of a function, starting at the instruction
+     * at <var>pc</var>, until it reaches an instruction which it leaves
+     * to the interpreter (calls, returns and the like).
+     *
+     * @param L  the Lua thread, with the function's frame current.
+     * @param f  the function being executed.
+     * @param pc the instruction to start at.
+     * @return the pc of the instruction for the interpreter to execute
+     * next.
+     */
+    abstract int run(Lua L, LuaFunction f, int pc);
+}
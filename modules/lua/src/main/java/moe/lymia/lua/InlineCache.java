@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package moe.lymia.lua;
+
+/**
+ * Inline cache for a table read with a constant string key (GETGLOBAL,
+ * and GETTABLE or SELF with a constant key).  This class is internal to
+ * Jill and should not be used by clients.
+ * <p>
+ * A cache remembers where the key was found the last time the
+ * instruction ran, either directly in the table being indexed or, one
+ * level down, in a table that is the <code>__index</code> field of its
+ * metatable.  Nothing is stored that could go stale silently: slots are
+ * only trusted whilst the hash part they index is still the table's
+ * current one (keys never move except by rehash, which replaces the
+ * arrays), and the absence of the key from the table being indexed is
+ * only trusted whilst {@link LuaTable#version} is unchanged.  A read of
+ * a dead slot simply misses.
+ */
+final class InlineCache {
+    /**
+     * Hash part holding the key, <code>null</code> if the cache is
+     * empty.
+     */
+    private Object[] keys;
+    private int slot;
+    /**
+     * For an <code>__index</code> hit, the table being indexed, else
+     * <code>null</code>.
+     */
+    private LuaTable owner;
+    private int version;
+    /**
+     * For an <code>__index</code> hit, the hash part and slot of the
+     * metatable's <code>__index</code> field, and the table it held.
+     */
+    private Object[] mtkeys;
+    private int mtslot;
+    private LuaTable index;
+
+    /**
+     * Reads through the cache.
+     *
+     * @param t   the object being indexed.
+     * @param val where to store the value on a hit.
+     * @return true on a hit.
+     */
+    boolean get(Object t, Slot val) {
+        if (!(t instanceof LuaTable)) {
+            return false;
+        }
+        LuaTable h = (LuaTable) t;
+        Object v;
+        if (owner == null) {
+            if (h.hkeys != keys) {
+                return false;
+            }
+            v = h.hvalues[slot];
+        } else {
+            if (h != owner || h.version != version) {
+                return false;
+            }
+            // The metatable can't have changed without changing version.
+            LuaTable mt = h.getMetatable();
+            if (mt.hkeys != mtkeys || mt.hvalues[mtslot] != index ||
+                    index.hkeys != keys) {
+                return false;
+            }
+            v = index.hvalues[slot];
+        }
+        if (v == null) {
+            return false;
+        }
+        val.setObject(v);
+        return true;
+    }
+
+    /**
+     * Refills the cache after a miss.  The key is looked up again
+     * rather than recorded by the slow path, which keeps the slow path
+     * free of cache logic.  Lookups that can't be cached (tag method
+     * functions, deeper <code>__index</code> chains, misses) leave the
+     * cache empty.
+     *
+     * @param t   the object that was indexed.
+     * @param key the constant key.
+     */
+    void fill(Object t, String key) {
+        keys = null;
+        owner = null;
+        index = null;
+        mtkeys = null;
+        if (!(t instanceof LuaTable)) {
+            return;
+        }
+        LuaTable h = (LuaTable) t;
+        int i = h.findslot(key);
+        if (i >= 0 && h.hvalues[i] != null) {
+            keys = h.hkeys;
+            slot = i;
+            return;
+        }
+        LuaTable mt = h.getMetatable();
+        if (mt == null) {
+            return;
+        }
+        int mi = mt.findslot("__index");
+        if (mi < 0 || !(mt.hvalues[mi] instanceof LuaTable)) {
+            return;
+        }
+        LuaTable idx = (LuaTable) mt.hvalues[mi];
+        int j = idx.findslot(key);
+        if (j < 0 || idx.hvalues[j] == null) {
+            return;
+        }
+        owner = h;
+        version = h.version;
+        mtkeys = mt.hkeys;
+        mtslot = mi;
+        index = idx;
+        keys = idx.hkeys;
+        slot = j;
+    }
+}
@@ -182,6 +182,18 @@ public final class Lua {
      */
     private LuaTable[] metatable;
 
+    /**
+     * Number of entries into a Lua function after which it's compiled
+     * by {@link ProtoCompiler}, or 0 to always interpret.  Compilation is
+     * opt in, so this is 0 until {@link #setCompileThreshold} is called.
+     */
+    private int compileThreshold;       // = 0;
+
+    /**
+     * Suggested threshold for {@link #setCompileThreshold}.
+     */
+    public static final int DEFAULT_COMPILE_THRESHOLD = 200;
+
     /**
      * Maximum number of local variables per function.  As per
      * LUAI_MAXVARS from "luaconf.h".  Default access so that {@link
@@ -219,6 +231,7 @@ public final class Lua {
         this.global = L.global;
         this.registry = L.registry;
         this.metatable = L.metatable;
+        this.compileThreshold = L.compileThreshold;
         this.main = L;
     }
 
@@ -886,17 +899,17 @@ public final class Lua {
     }
 
     /**
-     * Slowly get the next key from a table.  Unlike most other functions
+     * Get the next key from a table.  Unlike most other functions
      * in the API this one uses the stack.  The top-of-stack is popped and
      * used to find the next key in the table at the position specified by
      * index.  If there is a next key then the key and its value are
      * pushed onto the stack and <code>true</code> is returned.
      * Otherwise (the end of the table has been reached)
-     * <code>false</code> is returned.
+     * <code>false</code> is returned.  Each step is a single lookup of
+     * the previous key, so a whole traversal is linear.
      *
      * @param idx stack index of table.
      * @return true if and only if there are more keys in the table.
-     * @deprecated Use {@link #tableKeys} enumeration protocol instead.
      */
     public boolean next(int idx) {
         Object o = value(idx);
@@ -904,30 +917,17 @@ public final class Lua {
         LuaTable t = (LuaTable) o;
         Object key = value(-1);
         pop(1);
-        Enumeration e = t.keys();
-        if (key == NIL) {
-            if (e.hasMoreElements()) {
-                key = e.nextElement();
-                push(key);
-                push(t.getlua(key));
-                return true;
-            }
-            return false;
+        int i = t.indexAfter(key);
+        if (i < 0) {
+            gRunerror("invalid key to 'next'");
         }
-        while (e.hasMoreElements()) {
-            Object k = e.nextElement();
-            if (k.equals(key)) {
-                if (e.hasMoreElements()) {
-                    key = e.nextElement();
-                    push(key);
-                    push(t.getlua(key));
-                    return true;
-                }
-                return false;
-            }
+        i = t.nextIndex(i);
+        if (i < 0) {
+            return false;
         }
-        // protocol error which we could potentially diagnose.
-        return false;
+        push(t.keyAt(i));
+        push(t.valueAt(i));
+        return true;
     }
 
     /**
@@ -2132,6 +2132,22 @@ public final class Lua {
         hookmask = mask;
     }
 
+    /**
+     * Sets the number of times a Lua function is entered before it's
+     * compiled to JVM bytecode.  Compiled functions run considerably
+     * faster than interpreted ones, but each compilation defines a new
+     * class.  Functions are always interpreted whilst a debug hook is
+     * set, and where classes can't be defined at runtime.  Only affects
+     * this thread, and threads created from it afterwards; a thread with
+     * a threshold of 0 interprets even functions that another thread has
+     * already compiled.
+     *
+     * @param threshold number of entries, or 0 to never compile.
+     */
+    public void setCompileThreshold(int threshold) {
+        compileThreshold = Math.max(threshold, 0);
+    }
+
     /**
      * @return true is okay, false otherwise (for example, error).
      */
@@ -2885,9 +2901,15 @@ public final class Lua {
             int[] code = proto.code();
             Slot[] k = proto.constant();
             int pc = savedpc;
+            CompiledProto compiled = ProtoCompiler.forProto(proto, compileThreshold);
 
             while (true)        // main loop of interpreter
             {
+                if (compiled != null && hookmask == 0) {
+                    // Runs up to the next instruction that needs the
+                    // interpreter (a call or return, usually).
+                    pc = compiled.run(this, function, pc);
+                }
 
                 // Where the PUC-Rio code used the Protect macro, this has been
                 // replaced with "savedpc = pc" and a "// Protect" comment.
@@ -2940,16 +2962,22 @@ public final class Lua {
                         setObjectAt(function.upVal(b).getValue(), base + a);
                         continue;
                     }
-                    case OP_GETGLOBAL:
+                    case OP_GETGLOBAL: {
                         rb = k[ARGBx(i)];
                         // assert rb instance of String;
-                        savedpc = pc; // Protect
-                        vmGettable(function.getEnv(), rb, stack[base + a]);
+                        vmGetcached(proto.inlineCache(pc - 1), pc,
+                                function.getEnv(), rb, stack[base + a]);
                         continue;
+                    }
                     case OP_GETTABLE: {
-                        savedpc = pc; // Protect
                         Object h = stack[base + ARGB(i)].asObject();
-                        vmGettable(h, RK(k, ARGC(i)), stack[base + a]);
+                        int c = ARGC(i);
+                        if (ISK(c) && k[c & 0xff].r instanceof String) {
+                            vmGetcached(proto.inlineCache(pc - 1), pc, h, k[c & 0xff], stack[base + a]);
+                            continue;
+                        }
+                        savedpc = pc; // Protect
+                        vmGettable(h, RK(k, c), stack[base + a]);
                         continue;
                     }
                     case OP_SETUPVAL: {
@@ -2980,8 +3008,14 @@ public final class Lua {
                         rb = stack[base + b];
                         stack[base + a + 1].r = rb.r;
                         stack[base + a + 1].d = rb.d;
+                        int c = ARGC(i);
+                        if (ISK(c) && k[c & 0xff].r instanceof String) {
+                            vmGetcached(proto.inlineCache(pc - 1), pc, rb.asObject(), k[c & 0xff],
+                                    stack[base + a]);
+                            continue;
+                        }
                         savedpc = pc; // Protect
-                        vmGettable(rb.asObject(), RK(k, ARGC(i)), stack[base + a]);
+                        vmGettable(rb.asObject(), RK(k, c), stack[base + a]);
                         continue;
                     }
                     case OP_ADD:
@@ -3406,6 +3440,329 @@ public final class Lua {
         gRunerror("loop in gettable");
     }
 
+    /**
+     * {@link #vmGettable} for instructions with a constant string key,
+     * going through the instruction's {@link InlineCache}.
+     *
+     * @param pc the pc <em>after</em> the instruction, as in vmExecute.
+     */
+    private void vmGetcached(InlineCache ic, int pc, Object t, Slot key, Slot val) {
+        if (ic.get(t, val)) {
+            return;
+        }
+        savedpc = pc; // Protect
+        vmGettable(t, key, val);
+        ic.fill(t, (String) key.r);
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    // Compiled code support
+
+    // Code generated by ProtoCompiler calls these methods, one per VM
+    // instruction, with the instruction's fields as arguments.  They are
+    // equivalent to the cases in vmExecute; pc is always the pc after
+    // the instruction, for savedpc.
+
+    Slot jitRegister(int r) {
+        return stack[base + r];
+    }
+
+    void jitCopy(int a, Slot src) {
+        stack[base + a].r = src.r;
+        stack[base + a].d = src.d;
+    }
+
+    void jitLoadbool(int a, boolean b) {
+        stack[base + a].r = valueOfBoolean(b);
+    }
+
+    void jitLoadnil(int a, int b) {
+        for (int i = base + b; i >= base + a; --i) {
+            stack[i].r = NIL;
+        }
+    }
+
+    void jitGetupval(LuaFunction f, int a, int b) {
+        setObjectAt(f.upVal(b).getValue(), base + a);
+    }
+
+    void jitSetupval(LuaFunction f, int a, int b) {
+        f.upVal(b).setValue(objectAt(base + a));
+    }
+
+    void jitGetglobal(LuaFunction f, int a, Slot key, InlineCache ic, int pc) {
+        vmGetcached(ic, pc, f.getEnv(), key, stack[base + a]);
+    }
+
+    /**
+     * OP_GETTABLE.
+     *
+     * @param ic the instruction's cache, or null if its key isn't a
+     *           constant string.
+     */
+    void jitGettable(int a, int b, Slot key, InlineCache ic, int pc) {
+        Object t = stack[base + b].asObject();
+        if (ic != null) {
+            vmGetcached(ic, pc, t, key, stack[base + a]);
+        } else {
+            savedpc = pc; // Protect
+            vmGettable(t, key, stack[base + a]);
+        }
+    }
+
+    void jitSelf(int a, int b, Slot key, InlineCache ic, int pc) {
+        Slot rb = stack[base + b];
+        stack[base + a + 1].r = rb.r;
+        stack[base + a + 1].d = rb.d;
+        jitGettable(a, b, key, ic, pc);
+    }
+
+    void jitSetglobal(LuaFunction f, int a, Slot key, int pc) {
+        savedpc = pc; // Protect
+        vmSettable(f.getEnv(), key, objectAt(base + a));
+    }
+
+    void jitSettable(int a, Slot key, Slot val, int pc) {
+        savedpc = pc; // Protect
+        vmSettable(stack[base + a].asObject(), key, val.asObject());
+    }
+
+    void jitNewtable(int a, int b, int c) {
+        stack[base + a].r = new LuaTable(oFb2int(b), oFb2int(c));
+    }
+
+    void jitAdd(int a, Slot rb, Slot rc, int pc) {
+        if (rb.r == NUMBER && rc.r == NUMBER) {
+            stack[base + a].d = rb.d + rc.d;
+            stack[base + a].r = NUMBER;
+        } else {
+            jitArith(OP_ADD, a, rb, rc, pc);
+        }
+    }
+
+    void jitSub(int a, Slot rb, Slot rc, int pc) {
+        if (rb.r == NUMBER && rc.r == NUMBER) {
+            stack[base + a].d = rb.d - rc.d;
+            stack[base + a].r = NUMBER;
+        } else {
+            jitArith(OP_SUB, a, rb, rc, pc);
+        }
+    }
+
+    void jitMul(int a, Slot rb, Slot rc, int pc) {
+        if (rb.r == NUMBER && rc.r == NUMBER) {
+            stack[base + a].d = rb.d * rc.d;
+            stack[base + a].r = NUMBER;
+        } else {
+            jitArith(OP_MUL, a, rb, rc, pc);
+        }
+    }
+
+    void jitDiv(int a, Slot rb, Slot rc, int pc) {
+        if (rb.r == NUMBER && rc.r == NUMBER) {
+            stack[base + a].d = rb.d / rc.d;
+            stack[base + a].r = NUMBER;
+        } else {
+            jitArith(OP_DIV, a, rb, rc, pc);
+        }
+    }
+
+    void jitMod(int a, Slot rb, Slot rc, int pc) {
+        if (rb.r == NUMBER && rc.r == NUMBER) {
+            stack[base + a].d = modulus(rb.d, rc.d);
+            stack[base + a].r = NUMBER;
+        } else {
+            jitArith(OP_MOD, a, rb, rc, pc);
+        }
+    }
+
+    void jitPow(int a, Slot rb, Slot rc, int pc) {
+        if (rb.r == NUMBER && rc.r == NUMBER) {
+            stack[base + a].d = Math.pow(rb.d, rc.d);
+            stack[base + a].r = NUMBER;
+        } else {
+            jitArith(OP_POW, a, rb, rc, pc);
+        }
+    }
+
+    /**
+     * Arithmetic on operands that aren't both numbers: string coercion,
+     * then metamethods.
+     */
+    private void jitArith(int op, int a, Slot rb, Slot rc, int pc) {
+        if (toNumberPair(rb, rc, NUMOP)) {
+            double x = NUMOP[0];
+            double y = NUMOP[1];
+            double r;
+            switch (op) {
+                case OP_ADD:
+                    r = x + y;
+                    break;
+                case OP_SUB:
+                    r = x - y;
+                    break;
+                case OP_MUL:
+                    r = x * y;
+                    break;
+                case OP_DIV:
+                    r = x / y;
+                    break;
+                case OP_MOD:
+                    r = modulus(x, y);
+                    break;
+                default:
+                    r = Math.pow(x, y);
+                    break;
+            }
+            stack[base + a].d = r;
+            stack[base + a].r = NUMBER;
+            return;
+        }
+        String event;
+        switch (op) {
+            case OP_ADD:
+                event = "__add";
+                break;
+            case OP_SUB:
+                event = "__sub";
+                break;
+            case OP_MUL:
+                event = "__mul";
+                break;
+            case OP_DIV:
+                event = "__div";
+                break;
+            case OP_MOD:
+                event = "__mod";
+                break;
+            default:
+                event = "__pow";
+                break;
+        }
+        savedpc = pc; // Protect
+        if (!call_binTM(rb, rc, stack[base + a], event)) {
+            gAritherror(rb, rc);
+        }
+    }
+
+    void jitUnm(int a, int b, int pc) {
+        Slot rb = stack[base + b];
+        if (rb.r == NUMBER) {
+            stack[base + a].d = -rb.d;
+            stack[base + a].r = NUMBER;
+        } else if (tonumber(rb, NUMOP)) {
+            stack[base + a].d = -NUMOP[0];
+            stack[base + a].r = NUMBER;
+        } else {
+            savedpc = pc; // Protect
+            if (!call_binTM(rb, rb, stack[base + a], "__unm")) {
+                gAritherror(rb, rb);
+            }
+        }
+    }
+
+    void jitNot(int a, int b) {
+        stack[base + a].r = valueOfBoolean(isFalse(stack[base + b].r));
+    }
+
+    void jitLen(int a, int b, int pc) {
+        Slot rb = stack[base + b];
+        if (rb.r instanceof LuaTable) {
+            stack[base + a].d = ((LuaTable) rb.r).getn();
+            stack[base + a].r = NUMBER;
+        } else if (rb.r instanceof String) {
+            stack[base + a].d = ((String) rb.r).length();
+            stack[base + a].r = NUMBER;
+        } else {
+            savedpc = pc; // Protect
+            if (!call_binTM(rb, rb, stack[base + a], "__len")) {
+                gTypeerror(rb, "get length of");
+            }
+        }
+    }
+
+    void jitConcat(int a, int b, int c, int pc) {
+        savedpc = pc; // Protect
+        vmConcat(c - b + 1, c);
+        stack[base + a].r = stack[base + b].r;
+        stack[base + a].d = stack[base + b].d;
+    }
+
+    boolean jitEq(Slot rb, Slot rc, int pc) {
+        savedpc = pc; // Protect
+        return vmEqual(rb, rc);
+    }
+
+    boolean jitLt(Slot rb, Slot rc, int pc) {
+        savedpc = pc; // Protect
+        return vmLessthan(rb, rc);
+    }
+
+    boolean jitLe(Slot rb, Slot rc, int pc) {
+        savedpc = pc; // Protect
+        return vmLessequal(rb, rc);
+    }
+
+    boolean jitIsFalse(int a) {
+        return isFalse(stack[base + a].r);
+    }
+
+    /**
+     * OP_TESTSET.
+     *
+     * @return true if the following jump is taken.
+     */
+    boolean jitTestset(int a, int b, boolean c) {
+        Slot rb = stack[base + b];
+        if (isFalse(rb.r) != c) {
+            stack[base + a].r = rb.r;
+            stack[base + a].d = rb.d;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * OP_FORLOOP.
+     *
+     * @return true if the loop continues.
+     */
+    boolean jitForloop(int a) {
+        double step = stack[base + a + 2].d;
+        double idx = stack[base + a].d + step;
+        double limit = stack[base + a + 1].d;
+        if ((0 < step && idx <= limit) ||
+                (step <= 0 && limit <= idx)) {
+            stack[base + a].d = idx;    // internal index
+            stack[base + a].r = NUMBER;
+            stack[base + a + 3].d = idx;  // external index
+            stack[base + a + 3].r = NUMBER;
+            return true;
+        }
+        return false;
+    }
+
+    void jitForprep(int a, int pc) {
+        int init = base + a;
+        int plimit = base + a + 1;
+        int pstep = base + a + 2;
+        savedpc = pc;       // next steps may throw errors
+        if (!tonumber(init)) {
+            gRunerror("'for' initial value must be a number");
+        } else if (!tonumber(plimit)) {
+            gRunerror("'for' limit must be a number");
+        } else if (!tonumber(pstep)) {
+            gRunerror("'for' step must be a number");
+        }
+        double step = stack[pstep].d;
+        stack[init].d = stack[init].d - step;
+        stack[init].r = NUMBER;
+    }
+
+    void jitClose(int a) {
+        fClose(base + a);
+    }
+
     /**
      * Equivalent of luaV_lessthan.
      */
@@ -27,20 +27,41 @@
 package moe.lymia.lua;
 
 import java.util.Enumeration;
+import java.util.NoSuchElementException;
 
 /**
  * Class that models Lua's tables.  Each Lua table is an instance of
- * this class.  Whilst you can clearly see that this class extends
- * {@link java.util.Hashtable} you should in no way rely upon that.
- * Calling any methods that are not defined in this class (but are
- * defined in a super class) is extremely deprecated.
+ * this class.
+ * <p>
+ * Like PUC-Rio's ltable.c a table has an array part, used for the
+ * integer keys [1,sizeArray], and a hash part for everything else.
+ * The hash part is an unsynchronized open addressing table with linear
+ * probing.  Numeric keys are stored unboxed, so lookups made from a
+ * {@link Slot} never allocate.  Keys are never removed from the hash
+ * part; assigning <code>nil</code> leaves a dead key behind (much like
+ * ltable.c does) which keeps traversal with {@link #keys} well defined
+ * while fields are cleared.  Dead keys are dropped when the table is
+ * next rehashed.
  */
-public final class LuaTable extends java.util.Hashtable<Object, Object> {
+public final class LuaTable {
     private static final int MAXBITS = 26;
     private static final int MAXASIZE = 1 << MAXBITS;
+    /**
+     * Smallest capacity of a non-empty hash part.
+     */
+    private static final int MINHASH = 4;
 
     private LuaTable metatable;   // = null;
     private static final Object[] ZERO = new Object[0];
+    /**
+     * Shared hash part for tables with no hash entries.  It has a
+     * single empty slot, so probes terminate immediately, and
+     * {@link #hlimit} is 0 so that it's never written to.
+     */
+    private static final Object[] EMPTY_KEYS = new Object[1];
+    private static final double[] EMPTY_NUMS = new double[1];
+    private static final int[] EMPTY_HASHES = new int[1];
+    private static final Object[] EMPTY_VALUES = new Object[1];
     /**
      * Array used so that tables accessed like arrays are more efficient.
      * All elements stored at an integer index, <var>i</var>, in the
@@ -58,13 +79,42 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
      */
     int sizeArray;        // = 0;
     /**
-     * <code>true</code> whenever we are in the {@link #rehash}
-     * method.  Avoids infinite rehash loops.
+     * Keys of the hash part.  <code>null</code> marks a free slot, and
+     * {@link Lua#NUMBER} marks a numeric key whose value is held in
+     * {@link #hnums}.  The length is always a power of 2.  Default
+     * access granted for {@link Enum} class, do not abuse.
+     */
+    Object[] hkeys = EMPTY_KEYS;
+    /**
+     * Numeric keys of the hash part, valid where <code>hkeys[i] ==
+     * Lua.NUMBER</code>.
+     */
+    double[] hnums = EMPTY_NUMS;
+    /**
+     * Cached (mixed) hash codes of the keys in the hash part.
+     */
+    private int[] hhashes = EMPTY_HASHES;
+    /**
+     * Values of the hash part.  <code>null</code> for a dead key.
+     */
+    Object[] hvalues = EMPTY_VALUES;
+    /**
+     * Number of slots in the hash part holding a key, dead or not.
+     */
+    private int hused;    // = 0;
+    /**
+     * Value of {@link #hused} at which a new key forces a rehash.
      */
-    private boolean inrehash;     // = false;
+    private int hlimit;   // = 0;
+    /**
+     * Bumped whenever a key starts to have a value (a new key, or a
+     * dead one being revived), on rehash, and when the metatable
+     * changes.  Whilst it's unchanged, a key found to be absent stays
+     * absent.  Used by {@link InlineCache}.
+     */
+    int version;          // = 0;
 
     public LuaTable() {
-        super(1);
     }
 
     /**
@@ -74,51 +124,125 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
      * @param nhash  number of hash slots to preallocate.
      */
     public LuaTable(int narray, int nhash) {
-        // :todo: super(nhash) isn't clearly correct as adding nhash hash
-        // table entries will causes a rehash with the usual implementation
-        // (which rehashes when ratio of entries to capacity exceeds the
-        // load factor of 0.75).  Perhaps ideally we would size the hash
-        // tables such that adding nhash entries will not cause a rehash.
-        super(nhash);
         array = new Object[narray];
         for (int i = 0; i < narray; ++i) {
             array[i] = Lua.NIL;
         }
         sizeArray = narray;
+        allochash(nhash);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashnum(double d) {
+        // + 0.0 folds -0.0 into 0.0; the two are the same key in Lua.
+        long bits = Double.doubleToLongBits(d + 0.0);
+        return mix((int) (bits ^ (bits >>> 32)));
+    }
+
+    private static int hashobj(Object o) {
+        // String caches its hash code, so this is cheap for the common
+        // case of field names.
+        return mix(o.hashCode());
     }
 
     /**
-     * Implements discriminating equality.  <code>o1.equals(o2) == (o1 ==
-     * o2) </code>.  This method is not necessary in CLDC, it's only
-     * necessary in J2SE because java.util.Hashtable overrides equals.
+     * Finds a numeric key in the hash part.
      *
-     * @param o the reference to compare with.
-     * @return true when equal.
+     * @return the slot holding the key, or the one's complement of the
+     * free slot where it would be inserted.
      */
-    public boolean equals(Object o) {
-        return this == o;
+    private int findnum(double d, int h) {
+        Object[] keys = hkeys;
+        int mask = keys.length - 1;
+        int i = h & mask;
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k == Lua.NUMBER && hnums[i] == d) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return ~i;
     }
 
     /**
-     * Provided to avoid Checkstyle warning.  This method is not necessary
-     * for correctness (in neither JME nor JSE), it's only provided to
-     * remove a Checkstyle warning.
-     * Since {@link #equals} implements the most discriminating
-     * equality possible, this method can have any implementation.
-     *
-     * @return an int.
+     * Like {@link #findnum} for non-numeric keys.  Checks identity
+     * first, as interned strings (field names from compiled chunks)
+     * are the usual case.
      */
-    public int hashCode() {
-        return System.identityHashCode(this);
+    private int findobj(Object key, int h) {
+        Object[] keys = hkeys;
+        int mask = keys.length - 1;
+        int i = h & mask;
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k == key ||
+                    (hhashes[i] == h && k != Lua.NUMBER && k.equals(key))) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return ~i;
     }
 
-    private static int arrayindex(Object key) {
-        if (key instanceof Double) {
-            double d = (Double) key;
-            int k = (int) d;
-            if (k == d) {
-                return k;
-            }
+    /**
+     * Sets up an empty hash part able to take <var>n</var> keys
+     * without a rehash.
+     */
+    private void allochash(int n) {
+        hused = 0;
+        if (n <= 0) {
+            hkeys = EMPTY_KEYS;
+            hnums = EMPTY_NUMS;
+            hhashes = EMPTY_HASHES;
+            hvalues = EMPTY_VALUES;
+            hlimit = 0;
+            return;
+        }
+        int cap = MINHASH;
+        while (cap - (cap >> 2) < n) {
+            cap <<= 1;
+        }
+        hkeys = new Object[cap];
+        hnums = new double[cap];
+        hhashes = new int[cap];
+        hvalues = new Object[cap];
+        hlimit = cap - (cap >> 2);
+    }
+
+    /**
+     * Stores a key known to be absent at the free slot <var>i</var>.
+     */
+    private void insert(int i, Object key, double d, int h, Object value) {
+        hkeys[i] = key;
+        hnums[i] = d;
+        hhashes[i] = h;
+        hvalues[i] = value;
+        ++hused;
+        ++version;
+    }
+
+    /**
+     * Adds a live entry from a previous hash part to a fresh one.  The
+     * key is known to be absent so there's no need to compare keys.
+     */
+    private void reinsert(Object key, double d, int h, Object value) {
+        int mask = hkeys.length - 1;
+        int i = h & mask;
+        while (hkeys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        insert(i, key, d, h, value);
+    }
+
+    private static int arrayindex(double d) {
+        int k = (int) d;
+        if (k == d) {
+            return k;
         }
         return -1;  // 'key' did not match some condition
     }
@@ -149,7 +273,7 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
         return na;
     }
 
-    private int countint(Object key, int[] nums) {
+    private int countint(double key, int[] nums) {
         int k = arrayindex(key);
         if (0 < k && k <= MAXASIZE) // is 'key' an appropriate array index?
         {
@@ -189,12 +313,13 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
     private int numusehash(int[] nums, int[] pnasize) {
         int totaluse = 0;   // total number of elements
         int ause = 0;       // summation of nums
-        Enumeration e;
-        e = super.keys();
-        while (e.hasMoreElements()) {
-            Object o = e.nextElement();
-            ause += countint(o, nums);
-            ++totaluse;
+        for (int i = 0; i < hkeys.length; ++i) {
+            if (hvalues[i] != null) {
+                if (hkeys[i] == Lua.NUMBER) {
+                    ause += countint(hnums[i], nums);
+                }
+                ++totaluse;
+            }
         }
         pnasize[0] += ause;
         return totaluse;
@@ -202,64 +327,75 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
 
     /**
      * @param nasize (new) size of array part
+     * @param nhsize number of keys the (new) hash part must hold
      */
-    private void resize(int nasize) {
-        if (nasize == sizeArray) {
-            return;
+    private void resize(int nasize, int nhsize) {
+        Object[] oldarray = array;
+        int oldasize = sizeArray;
+        Object[] oldkeys = hkeys;
+        double[] oldnums = hnums;
+        int[] oldhashes = hhashes;
+        Object[] oldvalues = hvalues;
+
+        if (nasize != oldasize) {
+            Object[] newarray = new Object[nasize];
+            System.arraycopy(oldarray, 0, newarray, 0, Math.min(nasize, oldasize));
+            for (int i = oldasize; i < nasize; ++i) {
+                newarray[i] = Lua.NIL;
+            }
+            array = newarray;
+            sizeArray = nasize;
         }
-        Object[] newarray = new Object[nasize];
-        if (nasize > sizeArray)     // array part must grow?
-        {
-            // The new array slots, from sizeArray to nasize-1, must
-            // be filled with their values from the hash part.
-            // There are two strategies:
-            // Iterate over the new array slots, and look up each index in the
-            // hash part to see if it has a value; or,
-            // Iterate over the hash part and see if each key belongs in the
-            // array part.
-            // For now we choose the first algorithm.
-            // :todo: consider using second algorithm, possibly dynamically.
-            System.arraycopy(array, 0, newarray, 0, array.length);
-            for (int i = array.length; i < nasize; ++i) {
-                Object key = (double) (i + 1);
-                Object v = super.remove(key);
-                if (v == null) {
-                    v = Lua.NIL;
-                }
-                newarray[i] = v;
+        allochash(nhsize);
+
+        // move elements from array slots nasize to oldasize-1 to the
+        // hash part.
+        for (int i = nasize; i < oldasize; ++i) {
+            if (oldarray[i] != Lua.NIL) {
+                double d = i + 1;
+                reinsert(Lua.NUMBER, d, hashnum(d), oldarray[i]);
             }
         }
-        if (nasize < sizeArray)     // array part must shrink?
-        {
-            // move elements from array slots nasize to sizeArray-1 to the
-            // hash part.
-            for (int i = nasize; i < sizeArray; ++i) {
-                if (array[i] != Lua.NIL) {
-                    Object key = (double) (i + 1);
-                    super.put(key, array[i]);
+        // move the live entries of the old hash part, some of which may
+        // now belong in the array part.
+        for (int i = 0; i < oldkeys.length; ++i) {
+            Object v = oldvalues[i];
+            if (v == null) {
+                continue;
+            }
+            Object k = oldkeys[i];
+            if (k == Lua.NUMBER) {
+                double d = oldnums[i];
+                int j = (int) d;
+                if (j == d && j >= 1 && j <= sizeArray) {
+                    array[j - 1] = v;
+                    continue;
                 }
             }
-            System.arraycopy(array, 0, newarray, 0, newarray.length);
+            reinsert(k, oldnums[i], oldhashes[i], v);
         }
-        array = newarray;
-        sizeArray = array.length;
     }
 
-    protected void rehash() {
-        boolean oldinrehash = inrehash;
-        inrehash = true;
-        if (!oldinrehash) {
-            int[] nasize = new int[1];
-            int[] nums = new int[MAXBITS + 1];
-            nasize[0] = numusearray(nums);      // count keys in array part
-            int totaluse = nasize[0];
-            totaluse += numusehash(nums, nasize);
-            int na = computesizes(nums, nasize);
-
-            resize(nasize[0]);
+    /**
+     * Equivalent to rehash in ltable.c.  Picks new sizes for both parts
+     * given the live keys plus one extra key that's about to be added.
+     *
+     * @param isnum  whether the extra key is a number.
+     * @param extra  the extra key, if numeric.
+     */
+    private void rehash(boolean isnum, double extra) {
+        int[] nasize = new int[1];
+        int[] nums = new int[MAXBITS + 1];
+        nasize[0] = numusearray(nums);      // count keys in array part
+        int totaluse = nasize[0];
+        totaluse += numusehash(nums, nasize);
+        // count extra key
+        if (isnum) {
+            nasize[0] += countint(extra, nums);
         }
-        super.rehash();
-        inrehash = oldinrehash;
+        ++totaluse;
+        int na = computesizes(nums, nasize);
+        resize(nasize[0], totaluse - na);
     }
 
     /**
@@ -278,10 +414,11 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
      */
     // :todo: Support metatable's __gc and __mode keys appropriately.
     //        This involves detecting when those keys are present in the
-    //        metatable, and changing all the entries in the Hashtable
+    //        metatable, and changing all the entries in the hash part
     //        to be instance of java.lang.Ref as appropriate.
     void setMetatable(LuaTable metatable) {
         this.metatable = metatable;
+        ++version;
     }
 
     /**
@@ -335,26 +472,61 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
     }
 
     /**
-     * Like {@link java.util.Hashtable#get}.  Ensures that indexes
-     * with no value return {@link Lua#NIL}.  In order to get the correct
-     * behaviour for <code>t[nil]</code>, this code assumes that Lua.NIL
-     * is non-<code>null</code>.
+     * Looks up a numeric key.  Equivalent to luaH_getnum, but also
+     * handles non-integer keys.
      */
-    Object getlua(Object key) {
-        if (key instanceof Double) {
-            double d = (Double) key;
-            if (d <= sizeArray && d >= 1) {
-                int i = (int) d;
-                if (i == d) {
-                    return array[i - 1];
-                }
+    private Object getdouble(double d) {
+        if (d <= sizeArray && d >= 1) {
+            int i = (int) d;
+            if (i == d) {
+                return array[i - 1];
             }
         }
-        Object r = super.get(key);
-        if (r == null) {
-            r = Lua.NIL;
+        int i = findnum(d, hashnum(d));
+        if (i >= 0) {
+            Object r = hvalues[i];
+            if (r != null) {
+                return r;
+            }
         }
-        return r;
+        return Lua.NIL;
+    }
+
+    private Object getobj(Object key) {
+        int i = findobj(key, hashobj(key));
+        if (i >= 0) {
+            Object r = hvalues[i];
+            if (r != null) {
+                return r;
+            }
+        }
+        return Lua.NIL;
+    }
+
+    /**
+     * Finds the hash part slot of a non-numeric key, for {@link
+     * InlineCache}.  The slot of a key stays the same until
+     * {@link #hkeys} is replaced by a rehash.
+     *
+     * @return the slot, or -1 if the key is not in the hash part.  The
+     * key may be dead.
+     */
+    int findslot(Object key) {
+        int i = findobj(key, hashobj(key));
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Raw table lookup.  Ensures that indexes with no value return
+     * {@link Lua#NIL}.  In order to get the correct behaviour for
+     * <code>t[nil]</code>, this code assumes that Lua.NIL is
+     * non-<code>null</code>.
+     */
+    Object getlua(Object key) {
+        if (key instanceof Double) {
+            return getdouble((Double) key);
+        }
+        return getobj(key);
     }
 
     /**
@@ -363,20 +535,10 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
      */
     void getlua(Slot key, Slot value) {
         if (key.r == Lua.NUMBER) {
-            double d = key.d;
-            if (d <= sizeArray && d >= 1) {
-                int i = (int) d;
-                if (i == d) {
-                    value.setObject(array[i - 1]);
-                    return;
-                }
-            }
-        }
-        Object r = super.get(key.asObject());
-        if (r == null) {
-            r = Lua.NIL;
+            value.setObject(getdouble(key.d));
+        } else {
+            value.setObject(getobj(key.r));
         }
-        value.setObject(r);
     }
 
     /**
@@ -386,15 +548,69 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
         if (k <= sizeArray && k >= 1) {
             return array[k - 1];
         }
-        Object r = super.get((double) k);
-        if (r == null) {
-            return Lua.NIL;
+        return getdouble(k);
+    }
+
+    /**
+     * Assigns to an existing key of the hash part.
+     */
+    private void sethvalue(int i, Object value) {
+        if (value == Lua.NIL) {
+            hvalues[i] = null;
+            return;
+        }
+        if (hvalues[i] == null) {
+            ++version;    // dead key is revived
+        }
+        hvalues[i] = value;
+    }
+
+    private void putdouble(Lua L, double d, Object value) {
+        int j = (int) d;
+        if (j == d && j >= 1 && j <= sizeArray) {
+            array[j - 1] = value;
+            return;
         }
-        return r;
+        if (Double.isNaN(d)) {
+            L.gRunerror("table index is NaN");
+        }
+        int h = hashnum(d);
+        int i = findnum(d, h);
+        if (i >= 0) {
+            sethvalue(i, value);
+            return;
+        }
+        if (value == Lua.NIL) {
+            return;
+        }
+        if (hused >= hlimit) {
+            rehash(true, d);
+            // the key may belong in the array part after the rehash.
+            putdouble(L, d, value);
+            return;
+        }
+        insert(~i, Lua.NUMBER, d, h, value);
+    }
+
+    private void putobj(Object key, Object value) {
+        int h = hashobj(key);
+        int i = findobj(key, h);
+        if (i >= 0) {
+            sethvalue(i, value);
+            return;
+        }
+        if (value == Lua.NIL) {
+            return;
+        }
+        if (hused >= hlimit) {
+            rehash(false, 0);
+            i = findobj(key, h);
+        }
+        insert(~i, key, 0, h, value);
     }
 
     /**
-     * Like {@link java.util.Hashtable#put} but enables Lua's semantics
+     * Raw table assignment which enables Lua's semantics
      * for <code>nil</code>;
      * In particular that <code>x = nil</nil>
      * deletes <code>x</code>.
@@ -406,72 +622,24 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
      * @param value value.
      */
     void putlua(Lua L, Object key, Object value) {
-        double d = 0.0;
-        int i = Integer.MAX_VALUE;
-
         if (key == Lua.NIL) {
             L.gRunerror("table index is nil");
         }
         if (key instanceof Double) {
-            d = (Double) key;
-            int j = (int) d;
-
-            if (j == d && j >= 1) {
-                i = j; // will cause additional check for array part later if
-                // the array part check fails now.
-                if (i <= sizeArray) {
-                    array[i - 1] = value;
-                    return;
-                }
-            }
-            if (Double.isNaN(d)) {
-                L.gRunerror("table index is NaN");
-            }
-        }
-        // :todo: Consider checking key for NaN (PUC-Rio does)
-        if (value == Lua.NIL) {
-            remove(key);
-            return;
-        }
-        super.put(key, value);
-        // This check is necessary because sometimes the call to super.put
-        // can rehash and the new (k,v) pair should be in the array part
-        // after the rehash, but is still in the hash part.
-        if (i <= sizeArray) {
-            remove(key);
-            array[i - 1] = value;
+            putdouble(L, (Double) key, value);
+        } else {
+            putobj(key, value);
         }
     }
 
     void putlua(Lua L, Slot key, Object value) {
-        int i = Integer.MAX_VALUE;
-
         if (key.r == Lua.NIL) {
             L.gRunerror("table index is nil");
         }
         if (key.r == Lua.NUMBER) {
-            int j = (int) key.d;
-            if (j == key.d && j >= 1) {
-                i = j;
-                if (i <= sizeArray) {
-                    array[i - 1] = value;
-                    return;
-                }
-            }
-            if (Double.isNaN(key.d)) {
-                L.gRunerror("table index is NaN");
-            }
-        }
-        Object k = key.asObject();
-        // :todo: consider some sort of tail merge with the other putlua
-        if (value == Lua.NIL) {
-            remove(k);
-            return;
-        }
-        super.put(k, value);
-        if (i <= sizeArray) {
-            remove(k);
-            array[i - 1] = value;
+            putdouble(L, key.d, value);
+        } else {
+            putobj(key.r, value);
         }
     }
 
@@ -483,34 +651,99 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
             array[k - 1] = v;
             return;
         }
-        // The key can never be NIL so putlua will never notice that its L
-        // argument is null.
-        // :todo: optimisation to avoid putlua checking for array part again
-        putlua(null, (double) k, v);
+        // The key can never be NaN so putdouble will never notice that
+        // its L argument is null.
+        putdouble(null, k, v);
     }
 
     /**
-     * Do not use, implementation exists only to generate deprecated
-     * warning.
+     * Iteration support, equivalent to findindex in ltable.c.  A
+     * position indexes the array part followed by the slots of the hash
+     * part.
      *
-     * @deprecated Use getlua instead.
+     * @param key a key in the table, or {@link Lua#NIL}.
+     * @return the position following <var>key</var>, 0 for
+     * <code>nil</code>, or -1 if <var>key</var> is not in the table.
      */
-    public Object get(Object key) {
-        throw new IllegalArgumentException();
+    int indexAfter(Object key) {
+        if (key == Lua.NIL) {
+            return 0;
+        }
+        int i;
+        if (key instanceof Double) {
+            double d = (Double) key;
+            int k = (int) d;
+            if (k == d && k >= 1 && k <= sizeArray) {
+                return k;
+            }
+            i = findnum(d, hashnum(d));
+        } else {
+            i = findobj(key, hashobj(key));
+        }
+        // Dead keys are still found, so clearing fields whilst
+        // traversing is allowed.
+        if (i < 0) {
+            return -1;
+        }
+        return sizeArray + i + 1;
     }
 
-    public Enumeration<Object> keys() {
-        return new Enum(this, super.keys());
+    /**
+     * Finds the first live entry at or after a position.
+     *
+     * @return the position of the entry, or -1 if there is none.
+     */
+    int nextIndex(int pos) {
+        for (; pos < sizeArray; ++pos) {
+            if (array[pos] != Lua.NIL) {
+                return pos;
+            }
+        }
+        Object[] values = hvalues;
+        for (int i = pos - sizeArray; i < values.length; ++i) {
+            if (values[i] != null) {
+                return sizeArray + i;
+            }
+        }
+        return -1;
     }
 
     /**
-     * Do not use, implementation exists only to generate deprecated
-     * warning.
-     *
-     * @deprecated Use putlua instead.
+     * Key at a position returned by {@link #nextIndex}.
      */
-    public Object put(Object key, Object value) {
-        throw new IllegalArgumentException();
+    Object keyAt(int pos) {
+        if (pos < sizeArray) {
+            return (double) (pos + 1);
+        }
+        int i = pos - sizeArray;
+        Object k = hkeys[i];
+        if (k == Lua.NUMBER) {
+            return hnums[i];
+        }
+        return k;
+    }
+
+    /**
+     * Value at a position returned by {@link #nextIndex}.
+     */
+    Object valueAt(int pos) {
+        if (pos < sizeArray) {
+            return array[pos];
+        }
+        Object v = hvalues[pos - sizeArray];
+        if (v == null) {
+            return Lua.NIL;
+        }
+        return v;
+    }
+
+    /**
+     * Enumerates the keys of the table, array part first.  Clearing
+     * fields during the enumeration is allowed, adding new keys is
+     * not (as with <code>next</code> in Lua).
+     */
+    public Enumeration<Object> keys() {
+        return new Enum(this);
     }
 
     /**
@@ -546,40 +779,52 @@ public final class LuaTable extends java.util.Hashtable<Object, Object> {
     }
 }
 
+/**
+ * Cursor over the entries of a {@link LuaTable}.  Besides being the
+ * table's key {@link Enumeration}, it's the state used by pairs, which
+ * reads the value of each entry directly rather than looking it up
+ * again.
+ */
 final class Enum implements Enumeration<Object> {
-    private LuaTable t;
-    private int i;        // = 0
-    private Enumeration e;
+    private final LuaTable t;
+    private int pos;      // = 0, where the search for the next entry starts
+    private int cur = -1; // position of the current entry
 
-    Enum(LuaTable t, Enumeration e) {
+    Enum(LuaTable t) {
         this.t = t;
-        this.e = e;
-        inci();
     }
 
     /**
-     * Increments {@link #i} until it either exceeds
-     * <code>t.sizeArray</code> or indexes a non-nil element.
+     * Moves to the next entry.
+     *
+     * @return false if there are no more entries.
      */
-    private void inci() {
-        while (i < t.sizeArray && t.array[i] == Lua.NIL) {
-            ++i;
+    boolean advance() {
+        int i = t.nextIndex(pos);
+        if (i < 0) {
+            return false;
         }
+        cur = i;
+        pos = i + 1;
+        return true;
+    }
+
+    Object key() {
+        return t.keyAt(cur);
+    }
+
+    Object value() {
+        return t.valueAt(cur);
     }
 
     public boolean hasMoreElements() {
-        return i < t.sizeArray || e.hasMoreElements();
+        return t.nextIndex(pos) >= 0;
     }
 
     public Object nextElement() {
-        Object r;
-        if (i < t.sizeArray) {
-            ++i;      // array index i corresponds to key i+1
-            r = (double) i;
-            inci();
-        } else {
-            r = e.nextElement();
+        if (!advance()) {
+            throw new NoSuchElementException();
         }
-        return r;
+        return key();
     }
 }
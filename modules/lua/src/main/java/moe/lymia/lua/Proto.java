@@ -98,6 +98,24 @@ final class Proto {
     String source;
     int linedefined;
     int lastlinedefined;
+    /**
+     * Inline caches of the table reads with constant keys, indexed by
+     * pc.  Allocated on first use.
+     */
+    private InlineCache[] icache;
+    /**
+     * Number of times the interpreter has entered this function, until
+     * it's compiled; see {@link ProtoCompiler}.
+     */
+    int entries;
+    /**
+     * Compiled code, if compiled.
+     */
+    CompiledProto compiled;
+    /**
+     * Set if the function can't be compiled.
+     */
+    boolean uncompilable;
 
     /**
      * Proto synthesized by {@link Loader}.
@@ -244,6 +262,21 @@ final class Proto {
         return code;
     }
 
+    /**
+     * Gets the inline cache for the instruction at <var>pc</var>.
+     */
+    InlineCache inlineCache(int pc) {
+        if (icache == null) {
+            icache = new InlineCache[code.length];
+        }
+        InlineCache c = icache[pc];
+        if (c == null) {
+            c = new InlineCache();
+            icache[pc] = c;
+        }
+        return c;
+    }
+
     /**
      * Append instruction.
      */
@@ -0,0 +1,756 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package moe.lymia.lua;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles hot {@link Proto}s to JVM classes.  This class is internal
+ * to Jill and should not be used by clients.
+ * <p>
+ * The generated code is a straight-line translation of the VM
+ * instructions: each becomes a call of a <code>jit</code> method of
+ * {@link Lua} with its operands as constants, and jumps, tests and
+ * <code>for</code> loops become JVM branches.  This removes instruction
+ * decoding and dispatch and lets HotSpot specialise each function.
+ * Values stay in the Lua stack, so at any instruction boundary the
+ * interpreter can take over.  The generated method can be entered at
+ * any pc, and it returns to the interpreter at the instructions it
+ * doesn't translate: calls, returns, <code>TFORLOOP</code>,
+ * <code>CLOSURE</code>, <code>SETLIST</code> and <code>VARARG</code>.
+ * Coroutine yields only happen in calls, so they are always handled by
+ * the interpreter; the interpreter also only uses compiled code whilst
+ * no debug hooks are set.
+ * <p>
+ * Classes are defined with {@link MethodHandles.Lookup}, as hidden
+ * classes where the JVM supports them so that they are unloaded with
+ * their function.  Where classes can't be defined at all (in a native
+ * image) the compiler disables itself.
+ */
+final class ProtoCompiler {
+    /**
+     * HotSpot doesn't JIT compile methods larger than this, and running
+     * them in the bytecode interpreter is slower than Jill's own.
+     */
+    private static final int MAX_CODE = 8000;
+
+    private static final String LUA = "moe/lymia/lua/Lua";
+    private static final String BASE = "moe/lymia/lua/CompiledProto";
+    private static final String SLOT = "Lmoe/lymia/lua/Slot;";
+    private static final String FUNCTION = "Lmoe/lymia/lua/LuaFunction;";
+    private static final String CACHE = "Lmoe/lymia/lua/InlineCache;";
+
+    private static final AtomicInteger counter = new AtomicInteger();
+    private static volatile boolean unavailable =
+            System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+
+    private static final Method DEFINE_HIDDEN;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method defineHidden = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            // Before Java 15, fall back to Lookup.defineClass
+        }
+        DEFINE_HIDDEN = defineHidden;
+        NO_OPTIONS = options;
+    }
+
+    /**
+     * Counts an entry into a function, compiling it once it's hot.
+     *
+     * @return the compiled code, or null to interpret.
+     */
+    static CompiledProto forProto(Proto p, int threshold) {
+        // Checked first, as the proto may have been compiled by another
+        // thread that has a different threshold.
+        if (threshold <= 0) {
+            return null;
+        }
+        CompiledProto c = p.compiled;
+        if (c != null || p.uncompilable) {
+            return c;
+        }
+        if (++p.entries < threshold) {
+            return null;
+        }
+        c = compile(p);
+        if (c == null) {
+            p.uncompilable = true;
+        }
+        p.compiled = c;
+        return c;
+    }
+
+    private static CompiledProto compile(Proto p) {
+        if (unavailable) {
+            return null;
+        }
+        byte[] bytes = new ProtoCompiler(p).generate();
+        if (bytes == null) {
+            return null;
+        }
+        Class<?> cls;
+        try {
+            cls = define(bytes);
+        } catch (Exception | LinkageError e) {
+            // Class definition isn't supported here.
+            unavailable = true;
+            return null;
+        }
+        try {
+            CompiledProto c = (CompiledProto) cls.getDeclaredConstructor().newInstance();
+            c.k = p.constant();
+            c.caches = new InlineCache[p.code.length];
+            for (int pc = 0; pc < p.code.length; ++pc) {
+                if (cached(p, p.code[pc])) {
+                    c.caches[pc] = p.inlineCache(pc);
+                }
+            }
+            return c;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        if (DEFINE_HIDDEN != null) {
+            return ((MethodHandles.Lookup) DEFINE_HIDDEN.invoke(lookup, bytes, false, NO_OPTIONS)).lookupClass();
+        }
+        return lookup.defineClass(bytes);
+    }
+
+    /**
+     * Whether the instruction reads a constant string key through an
+     * {@link InlineCache}.
+     */
+    private static boolean cached(Proto p, int i) {
+        switch (Lua.OPCODE(i)) {
+            case Lua.OP_GETGLOBAL:
+                return true;
+            case Lua.OP_GETTABLE:
+            case Lua.OP_SELF:
+                int c = Lua.ARGC(i);
+                return Lua.ISK(c) && p.k[c & 0xff].r instanceof String;
+            default:
+                return false;
+        }
+    }
+
+    // JVM opcodes used
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int AALOAD = 0x32;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    private final Proto p;
+    private final int[] code;
+    private final int n;
+
+    private final Buffer pool = new Buffer();
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final Buffer out = new Buffer();
+    /**
+     * Offset in {@link #out} of the code for each instruction.
+     */
+    private final int[] labels;
+    /**
+     * Pending branches, as triples of (offset of the branch
+     * instruction, offset of its operand, target pc); the operand is 2
+     * bytes for the branch instructions, 4 for tableswitch.
+     */
+    private int[] fixups = new int[48];
+    private int nfixups;
+
+    private ProtoCompiler(Proto p) {
+        this.p = p;
+        this.code = p.code;
+        this.n = p.sizecode;
+        this.labels = new int[n];
+    }
+
+    private byte[] generate() {
+        if (n == 0 || n > Short.MAX_VALUE) {
+            return null;
+        }
+        String name = "moe/lymia/lua/CompiledProto_" + counter.incrementAndGet();
+        int thisClass = classRef(name);
+        int superClass = classRef(BASE);
+        int initName = utf8("<init>");
+        int initDesc = utf8("()V");
+        int runName = utf8("run");
+        int runDesc = utf8("(L" + LUA + ";" + FUNCTION + "I)I");
+        int codeAttr = utf8("Code");
+        int superInit = methodRef(BASE, "<init>", "()V");
+
+        // run(Lua L, LuaFunction f, int pc): dispatch on pc, then the
+        // instructions in order.
+        out.u1(ILOAD);
+        out.u1(3);
+        int sw = out.size();
+        out.u1(TABLESWITCH);
+        while (out.size() % 4 != 0) {
+            out.u1(0);
+        }
+        int defaultOffset = out.size();
+        out.u4(0);
+        out.u4(0);
+        out.u4(n - 1);
+        for (int pc = 0; pc < n; ++pc) {
+            fixup(sw, out.size(), pc);
+            out.u4(0);
+        }
+        int exit = out.size();
+        out.u1(ILOAD);
+        out.u1(3);
+        out.u1(IRETURN);
+        out.patch4(defaultOffset, exit - sw);
+        for (int pc = 0; pc < n; ++pc) {
+            labels[pc] = out.size();
+            if (!instruction(pc)) {
+                bail(pc);
+            }
+        }
+        // The last instruction is always a RETURN, so control never runs
+        // off the end.
+        if (out.size() > MAX_CODE) {
+            return null;
+        }
+        for (int f = 0; f < nfixups; f += 3) {
+            int at = fixups[f];
+            int operand = fixups[f + 1];
+            int offset = labels[fixups[f + 2]] - at;
+            if (operand - at == 1) {
+                out.patch2(operand, offset);
+            } else {
+                out.patch4(operand, offset);
+            }
+        }
+
+        Buffer cls = new Buffer();
+        cls.u4(0xCAFEBABE);
+        // Version 49 classes are checked by the type inferencing
+        // verifier, so no StackMapTable is needed.
+        cls.u2(0);
+        cls.u2(49);
+        cls.u2(poolCount);
+        cls.bytes(pool);
+        cls.u2(0x0001 | 0x0010 | 0x0020); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+        cls.u2(thisClass);
+        cls.u2(superClass);
+        cls.u2(0);  // interfaces
+        cls.u2(0);  // fields
+        cls.u2(2);  // methods
+
+        cls.u2(0x0001); // ACC_PUBLIC
+        cls.u2(initName);
+        cls.u2(initDesc);
+        cls.u2(1);
+        cls.u2(codeAttr);
+        cls.u4(12 + 5);
+        cls.u2(1);  // max_stack
+        cls.u2(1);  // max_locals
+        cls.u4(5);
+        cls.u1(ALOAD_0);
+        cls.u1(INVOKESPECIAL);
+        cls.u2(superInit);
+        cls.u1(RETURN);
+        cls.u2(0);
+        cls.u2(0);
+
+        cls.u2(0x0001); // ACC_PUBLIC
+        cls.u2(runName);
+        cls.u2(runDesc);
+        cls.u2(1);
+        cls.u2(codeAttr);
+        cls.u4(12 + out.size());
+        cls.u2(12); // max_stack, more than any instruction needs
+        cls.u2(4);  // max_locals
+        cls.u4(out.size());
+        cls.bytes(out);
+        cls.u2(0);
+        cls.u2(0);
+
+        cls.u2(0);  // attributes
+        return cls.toByteArray();
+    }
+
+    /**
+     * Emits the code for one VM instruction.
+     *
+     * @return false if the instruction is left to the interpreter.
+     */
+    private boolean instruction(int pc) {
+        int i = code[pc];
+        int a = Lua.ARGA(i);
+        int b = Lua.ARGB(i);
+        int c = Lua.ARGC(i);
+        int next = pc + 1;      // the pc after the instruction
+        switch (Lua.OPCODE(i)) {
+            case Lua.OP_MOVE:
+                out.u1(ALOAD_1);
+                push(a);
+                register(b);
+                call("jitCopy", "(I" + SLOT + ")V");
+                return true;
+            case Lua.OP_LOADK:
+                out.u1(ALOAD_1);
+                push(a);
+                constant(Lua.ARGBx(i));
+                call("jitCopy", "(I" + SLOT + ")V");
+                return true;
+            case Lua.OP_LOADBOOL:
+                if (c != 0 && !valid(pc + 2)) {
+                    return false;
+                }
+                out.u1(ALOAD_1);
+                push(a);
+                push(b != 0 ? 1 : 0);
+                call("jitLoadbool", "(IZ)V");
+                if (c != 0) {
+                    branch(GOTO, pc + 2);
+                }
+                return true;
+            case Lua.OP_LOADNIL:
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                call("jitLoadnil", "(II)V");
+                return true;
+            case Lua.OP_GETUPVAL:
+            case Lua.OP_SETUPVAL:
+                out.u1(ALOAD_1);
+                out.u1(ALOAD_2);
+                push(a);
+                push(b);
+                call(Lua.OPCODE(i) == Lua.OP_GETUPVAL ? "jitGetupval" : "jitSetupval",
+                        "(" + FUNCTION + "II)V");
+                return true;
+            case Lua.OP_GETGLOBAL:
+                out.u1(ALOAD_1);
+                out.u1(ALOAD_2);
+                push(a);
+                constant(Lua.ARGBx(i));
+                cache(pc);
+                push(next);
+                call("jitGetglobal", "(" + FUNCTION + "I" + SLOT + CACHE + "I)V");
+                return true;
+            case Lua.OP_GETTABLE:
+            case Lua.OP_SELF:
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                rk(c);
+                if (cached(p, i)) {
+                    cache(pc);
+                } else {
+                    out.u1(ACONST_NULL);
+                }
+                push(next);
+                call(Lua.OPCODE(i) == Lua.OP_SELF ? "jitSelf" : "jitGettable",
+                        "(II" + SLOT + CACHE + "I)V");
+                return true;
+            case Lua.OP_SETGLOBAL:
+                out.u1(ALOAD_1);
+                out.u1(ALOAD_2);
+                push(a);
+                constant(Lua.ARGBx(i));
+                push(next);
+                call("jitSetglobal", "(" + FUNCTION + "I" + SLOT + "I)V");
+                return true;
+            case Lua.OP_SETTABLE:
+                out.u1(ALOAD_1);
+                push(a);
+                rk(b);
+                rk(c);
+                push(next);
+                call("jitSettable", "(I" + SLOT + SLOT + "I)V");
+                return true;
+            case Lua.OP_NEWTABLE:
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                push(c);
+                call("jitNewtable", "(III)V");
+                return true;
+            case Lua.OP_ADD:
+                return arith("jitAdd", a, b, c, next);
+            case Lua.OP_SUB:
+                return arith("jitSub", a, b, c, next);
+            case Lua.OP_MUL:
+                return arith("jitMul", a, b, c, next);
+            case Lua.OP_DIV:
+                return arith("jitDiv", a, b, c, next);
+            case Lua.OP_MOD:
+                return arith("jitMod", a, b, c, next);
+            case Lua.OP_POW:
+                return arith("jitPow", a, b, c, next);
+            case Lua.OP_UNM:
+            case Lua.OP_LEN:
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                push(next);
+                call(Lua.OPCODE(i) == Lua.OP_UNM ? "jitUnm" : "jitLen", "(III)V");
+                return true;
+            case Lua.OP_NOT:
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                call("jitNot", "(II)V");
+                return true;
+            case Lua.OP_CONCAT:
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                push(c);
+                push(next);
+                call("jitConcat", "(IIII)V");
+                return true;
+            case Lua.OP_JMP: {
+                int target = next + Lua.ARGsBx(i);
+                if (!valid(target)) {
+                    return false;
+                }
+                branch(GOTO, target);
+                return true;
+            }
+            case Lua.OP_EQ:
+            case Lua.OP_LT:
+            case Lua.OP_LE: {
+                // The next instruction is the jump taken when the
+                // comparison's result matches A.
+                int target = conditionalTarget(pc);
+                if (target < 0) {
+                    return false;
+                }
+                out.u1(ALOAD_1);
+                rk(b);
+                rk(c);
+                push(next);
+                String name = Lua.OPCODE(i) == Lua.OP_EQ ? "jitEq" :
+                        Lua.OPCODE(i) == Lua.OP_LT ? "jitLt" : "jitLe";
+                call(name, "(" + SLOT + SLOT + "I)Z");
+                branch(a != 0 ? IFNE : IFEQ, target);
+                branch(GOTO, pc + 2);
+                return true;
+            }
+            case Lua.OP_TEST: {
+                int target = conditionalTarget(pc);
+                if (target < 0) {
+                    return false;
+                }
+                out.u1(ALOAD_1);
+                push(a);
+                call("jitIsFalse", "(I)Z");
+                // jump if isFalse(R(A)) != C
+                branch(c != 0 ? IFEQ : IFNE, target);
+                branch(GOTO, pc + 2);
+                return true;
+            }
+            case Lua.OP_TESTSET: {
+                int target = conditionalTarget(pc);
+                if (target < 0) {
+                    return false;
+                }
+                out.u1(ALOAD_1);
+                push(a);
+                push(b);
+                push(c != 0 ? 1 : 0);
+                call("jitTestset", "(IIZ)Z");
+                branch(IFNE, target);
+                branch(GOTO, pc + 2);
+                return true;
+            }
+            case Lua.OP_FORLOOP: {
+                int target = next + Lua.ARGsBx(i);
+                if (!valid(target)) {
+                    return false;
+                }
+                out.u1(ALOAD_1);
+                push(a);
+                call("jitForloop", "(I)Z");
+                branch(IFNE, target);
+                return true;
+            }
+            case Lua.OP_FORPREP: {
+                int target = next + Lua.ARGsBx(i);
+                if (!valid(target)) {
+                    return false;
+                }
+                out.u1(ALOAD_1);
+                push(a);
+                push(next);
+                call("jitForprep", "(II)V");
+                branch(GOTO, target);
+                return true;
+            }
+            case Lua.OP_CLOSE:
+                out.u1(ALOAD_1);
+                push(a);
+                call("jitClose", "(I)V");
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean arith(String name, int a, int b, int c, int next) {
+        out.u1(ALOAD_1);
+        push(a);
+        rk(b);
+        rk(c);
+        push(next);
+        call(name, "(I" + SLOT + SLOT + "I)V");
+        return true;
+    }
+
+    /**
+     * Target of the jump following a test instruction at
+     * <var>pc</var>, or -1 if there isn't a valid one.
+     */
+    private int conditionalTarget(int pc) {
+        if (!valid(pc + 2) || Lua.OPCODE(code[pc + 1]) != Lua.OP_JMP) {
+            return -1;
+        }
+        int target = pc + 2 + Lua.ARGsBx(code[pc + 1]);
+        return valid(target) ? target : -1;
+    }
+
+    private boolean valid(int pc) {
+        return pc >= 0 && pc < n;
+    }
+
+    /**
+     * Returns to the interpreter at <var>pc</var>.
+     */
+    private void bail(int pc) {
+        push(pc);
+        out.u1(IRETURN);
+    }
+
+    private void push(int v) {
+        if (v >= -1 && v <= 5) {
+            out.u1(ICONST_0 + v);
+        } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+            out.u1(BIPUSH);
+            out.u1(v);
+        } else {
+            out.u1(SIPUSH);
+            out.u2(v);
+        }
+    }
+
+    private void register(int r) {
+        out.u1(ALOAD_1);
+        push(r);
+        call("jitRegister", "(I)" + SLOT);
+    }
+
+    private void constant(int index) {
+        out.u1(ALOAD_0);
+        out.u1(GETFIELD);
+        out.u2(fieldRef(BASE, "k", "[" + SLOT));
+        push(index);
+        out.u1(AALOAD);
+    }
+
+    private void rk(int field) {
+        if (Lua.ISK(field)) {
+            constant(field & 0xff);
+        } else {
+            register(field);
+        }
+    }
+
+    private void cache(int pc) {
+        out.u1(ALOAD_0);
+        out.u1(GETFIELD);
+        out.u2(fieldRef(BASE, "caches", "[" + CACHE));
+        push(pc);
+        out.u1(AALOAD);
+    }
+
+    private void call(String name, String desc) {
+        out.u1(INVOKEVIRTUAL);
+        out.u2(methodRef(LUA, name, desc));
+    }
+
+    private void branch(int opcode, int target) {
+        int at = out.size();
+        out.u1(opcode);
+        fixup(at, out.size(), target);
+        out.u2(0);
+    }
+
+    private void fixup(int at, int operand, int target) {
+        if (nfixups + 3 > fixups.length) {
+            int[] newFixups = new int[fixups.length * 2];
+            System.arraycopy(fixups, 0, newFixups, 0, nfixups);
+            fixups = newFixups;
+        }
+        fixups[nfixups++] = at;
+        fixups[nfixups++] = operand;
+        fixups[nfixups++] = target;
+    }
+
+    // Constant pool
+
+    private int entry(String key, int tag, int u2a, int u2b) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        pool.u1(tag);
+        pool.u2(u2a);
+        if (u2b >= 0) {
+            pool.u2(u2b);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int utf8(String s) {
+        Integer index = poolIndex.get("U" + s);
+        if (index != null) {
+            return index;
+        }
+        // Only ASCII names and descriptors are used.
+        pool.u1(1);
+        pool.u2(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            pool.u1(s.charAt(i));
+        }
+        poolIndex.put("U" + s, poolCount);
+        return poolCount++;
+    }
+
+    private int classRef(String name) {
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    private int nameAndType(String name, String desc) {
+        return entry("N" + name + " " + desc, 12, utf8(name), utf8(desc));
+    }
+
+    private int fieldRef(String owner, String name, String desc) {
+        return entry("F" + owner + " " + name + " " + desc, 9, classRef(owner), nameAndType(name, desc));
+    }
+
+    private int methodRef(String owner, String name, String desc) {
+        return entry("M" + owner + " " + name + " " + desc, 10, classRef(owner), nameAndType(name, desc));
+    }
+
+    /**
+     * Growable big-endian byte buffer.
+     */
+    private static final class Buffer {
+        private byte[] buf = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                byte[] newBuf = new byte[Math.max(buf.length * 2, size + n)];
+                System.arraycopy(buf, 0, newBuf, 0, size);
+                buf = newBuf;
+            }
+        }
+
+        void u1(int v) {
+            ensure(1);
+            buf[size++] = (byte) v;
+        }
+
+        void u2(int v) {
+            ensure(2);
+            buf[size++] = (byte) (v >> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void u4(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >> 24);
+            buf[size++] = (byte) (v >> 16);
+            buf[size++] = (byte) (v >> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void patch2(int at, int v) {
+            buf[at] = (byte) (v >> 8);
+            buf[at + 1] = (byte) v;
+        }
+
+        void patch4(int at, int v) {
+            buf[at] = (byte) (v >> 24);
+            buf[at + 1] = (byte) (v >> 16);
+            buf[at + 2] = (byte) (v >> 8);
+            buf[at + 3] = (byte) v;
+        }
+
+        void bytes(Buffer b) {
+            ensure(b.size);
+            System.arraycopy(b.buf, 0, buf, size, b.size);
+            size += b.size;
+        }
+
+        byte[] toByteArray() {
+            byte[] r = new byte[size];
+            System.arraycopy(buf, 0, r, 0, size);
+            return r;
+        }
+    }
+}
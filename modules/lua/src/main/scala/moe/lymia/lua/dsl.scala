@@ -213,7 +213,7 @@ class LuaImplicits extends LuaGeneratedImplicits {
   implicit def fromLuaMap[K : FromLua, V : FromLua]: FromLua[Map[K, V]] = new FromLua[Map[K, V]] {
     override def fromLua(L: Lua, v: Any, source: => Option[String]): Map[K, V] = v match {
       case table: LuaTable =>
-        (for(k <- table.keySet().asScala) yield (
+        (for(k <- table.keys().asScala) yield (
           implicitly[FromLua[K]].fromLua(L, k              , source.map(x => s"$x in table key"  )),
           implicitly[FromLua[V]].fromLua(L, table.getlua(k), source.map(x => s"$x in table value")))).toMap
       case _ => typerror(L, source, v, Lua.TTABLE)
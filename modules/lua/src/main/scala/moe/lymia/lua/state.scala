@@ -22,14 +22,19 @@
 
 package moe.lymia.lua
 
-import java.io.{InputStream, Reader}
+import java.io.{InputStream, OutputStream, Reader}
 import scala.collection.JavaConverters._
 
-case class LuaRegistryEntry[T]()
+// registry entries are keyed by identity, so each instance is a distinct slot
+final class LuaRegistryEntry[T]
+object LuaRegistryEntry {
+  def apply[T](): LuaRegistryEntry[T] = new LuaRegistryEntry[T]
+}
+
 final case class LuaState(L: Lua) extends AnyVal {
   def getRegistry[T](entry: LuaRegistryEntry[T], default: => T): T = {
     val reg = L.getRegistry
-    if(!reg.contains(entry)) reg.putlua(L, entry, default)
+    if(reg.getlua(entry) == Lua.NIL) reg.putlua(L, entry, default)
     reg.getlua(entry).asInstanceOf[T]
   }
 
@@ -120,6 +125,7 @@ final case class LuaState(L: Lua) extends AnyVal {
   def load(in: Reader, chunkname: String): Either[LuaClosure, String] = popLoad(L.load(in, chunkname))
   def loadResource(filename: String): Either[LuaClosure, String] = popLoad(L.loadFile(filename))
   def loadString(s: String, chunkname: String): Either[LuaClosure, String] = popLoad(L.loadString(s, chunkname))
+  def dump(fn: LuaClosure, out: OutputStream): Unit = Lua.dump(fn.fn, out)
   def doString(s: String): Unit = {
     val status = L.doString(s)
     if(status != 0) L.error(peekTop().as[String])
@@ -201,8 +207,11 @@ final case class LuaState(L: Lua) extends AnyVal {
 object LuaState {
   private val captureFunctionReturn = LuaRegistryEntry[LuaClosure]()
 
-  def makeSafeContext(): LuaState = {
+  // compileHotFunctions compiles frequently called Lua functions to JVM bytecode; it only has an effect on JVMs
+  // that can define classes at runtime. It's off by default until the compiler has test coverage.
+  def makeSafeContext(compileHotFunctions: Boolean = false): LuaState = {
     val L = new Lua()
+    L.setCompileThreshold(if (compileHotFunctions) Lua.DEFAULT_COMPILE_THRESHOLD else 0)
 
     BaseLib.open(L)
     MathLib.open(L)
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2006 Nokia Corporation and/or its subsidiary(-ies).
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+
+package moe.lymia.lua;
+
+import java.util.Enumeration;
+
+/**
+ * The {@link java.util.Hashtable} backed table that {@link LuaTable} used
+ * before it got its own hash part, kept only as a baseline for
+ * {@link LuaTableBenchmark}.  The array part and rehash logic are as they
+ * were; metatables, <code>getn</code> and the {@link Slot} overloads are
+ * left out, since the benchmark doesn't use them.
+ */
+final class HashtableLuaTable extends java.util.Hashtable<Object, Object> {
+    private static final int MAXBITS = 26;
+    private static final int MAXASIZE = 1 << MAXBITS;
+
+    private static final Object[] ZERO = new Object[0];
+    private Object[] array = ZERO;
+    private int sizeArray;        // = 0;
+    private boolean inrehash;     // = false;
+
+    HashtableLuaTable() {
+        super(1);
+    }
+
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    private static int arrayindex(Object key) {
+        if (key instanceof Double) {
+            double d = (Double) key;
+            int k = (int) d;
+            if (k == d) {
+                return k;
+            }
+        }
+        return -1;  // 'key' did not match some condition
+    }
+
+    private static int computesizes(int[] nums, int[] narray) {
+        final int t = narray[0];
+        int a = 0;  // number of elements smaller than 2^i
+        int na = 0; // number of elements to go to array part
+        int n = 0;  // optimal size for array part
+        int twotoi = 1;     // 2^i
+        for (int i = 0; twotoi / 2 < t; ++i) {
+            if (nums[i] > 0) {
+                a += nums[i];
+                if (a > twotoi / 2) {
+                    n = twotoi;
+                    na = a;
+                }
+            }
+            if (a == t) {
+                break;
+            }
+            twotoi *= 2;
+        }
+        narray[0] = n;
+        return na;
+    }
+
+    private int countint(Object key, int[] nums) {
+        int k = arrayindex(key);
+        if (0 < k && k <= MAXASIZE) {
+            ++nums[ceillog2(k)];
+            return 1;
+        }
+        return 0;
+    }
+
+    private int numusearray(int[] nums) {
+        int ause = 0;
+        int i = 1;
+        int ttlg = 1;
+        for (int lg = 0; lg <= MAXBITS; ++lg) {
+            int lc = 0;
+            int lim = ttlg;
+            if (lim > sizeArray) {
+                lim = sizeArray;
+                if (i > lim) {
+                    break;
+                }
+            }
+            for (; i <= lim; ++i) {
+                if (array[i - 1] != Lua.NIL) {
+                    ++lc;
+                }
+            }
+            nums[lg] += lc;
+            ause += lc;
+            ttlg *= 2;
+        }
+        return ause;
+    }
+
+    private int numusehash(int[] nums, int[] pnasize) {
+        int totaluse = 0;
+        int ause = 0;
+        Enumeration<Object> e = super.keys();
+        while (e.hasMoreElements()) {
+            Object o = e.nextElement();
+            ause += countint(o, nums);
+            ++totaluse;
+        }
+        pnasize[0] += ause;
+        return totaluse;
+    }
+
+    private void resize(int nasize) {
+        if (nasize == sizeArray) {
+            return;
+        }
+        Object[] newarray = new Object[nasize];
+        if (nasize > sizeArray) {
+            System.arraycopy(array, 0, newarray, 0, array.length);
+            for (int i = array.length; i < nasize; ++i) {
+                Object key = (double) (i + 1);
+                Object v = super.remove(key);
+                if (v == null) {
+                    v = Lua.NIL;
+                }
+                newarray[i] = v;
+            }
+        }
+        if (nasize < sizeArray) {
+            for (int i = nasize; i < sizeArray; ++i) {
+                if (array[i] != Lua.NIL) {
+                    Object key = (double) (i + 1);
+                    super.put(key, array[i]);
+                }
+            }
+            System.arraycopy(array, 0, newarray, 0, newarray.length);
+        }
+        array = newarray;
+        sizeArray = array.length;
+    }
+
+    protected void rehash() {
+        boolean oldinrehash = inrehash;
+        inrehash = true;
+        if (!oldinrehash) {
+            int[] nasize = new int[1];
+            int[] nums = new int[MAXBITS + 1];
+            nasize[0] = numusearray(nums);
+            numusehash(nums, nasize);
+            computesizes(nums, nasize);
+            resize(nasize[0]);
+        }
+        super.rehash();
+        inrehash = oldinrehash;
+    }
+
+    Object getlua(Object key) {
+        if (key instanceof Double) {
+            double d = (Double) key;
+            if (d <= sizeArray && d >= 1) {
+                int i = (int) d;
+                if (i == d) {
+                    return array[i - 1];
+                }
+            }
+        }
+        Object r = super.get(key);
+        if (r == null) {
+            r = Lua.NIL;
+        }
+        return r;
+    }
+
+    void putlua(Object key, Object value) {
+        int i = Integer.MAX_VALUE;
+        if (key instanceof Double) {
+            double d = (Double) key;
+            int j = (int) d;
+            if (j == d && j >= 1) {
+                i = j;
+                if (i <= sizeArray) {
+                    array[i - 1] = value;
+                    return;
+                }
+            }
+        }
+        if (value == Lua.NIL) {
+            remove(key);
+            return;
+        }
+        super.put(key, value);
+        if (i <= sizeArray) {
+            remove(key);
+            array[i - 1] = value;
+        }
+    }
+
+    /**
+     * Iterates over the array part, then the hash part, as the old
+     * <code>Enum</code> class did.
+     */
+    Enumeration<Object> luaKeys() {
+        final Enumeration<Object> e = super.keys();
+        return new Enumeration<Object>() {
+            private int i = skipNil(0);
+
+            private int skipNil(int i) {
+                while (i < sizeArray && array[i] == Lua.NIL) {
+                    ++i;
+                }
+                return i;
+            }
+
+            public boolean hasMoreElements() {
+                return i < sizeArray || e.hasMoreElements();
+            }
+
+            public Object nextElement() {
+                if (i < sizeArray) {
+                    Object r = (double) (i + 1);
+                    i = skipNil(i + 1);
+                    return r;
+                }
+                return e.nextElement();
+            }
+        };
+    }
+
+    private static final byte[] LOG2 = new byte[]{
+            0, 1, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5,
+            6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
+            7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8,
+            8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8,
+            8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8,
+            8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8
+    };
+
+    private static int oLog2(int x) {
+        int l = -1;
+        while (x >= 256) {
+            l += 8;
+            x >>>= 8;
+        }
+        return l + LOG2[x];
+    }
+
+    private static int ceillog2(int x) {
+        return oLog2(x - 1) + 1;
+    }
+}
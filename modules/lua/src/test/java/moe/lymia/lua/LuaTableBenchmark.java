@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.lua;
+
+/**
+ * Microbenchmark for the table implementation, covering the access patterns
+ * card scripts are dominated by: string-keyed field reads and writes, small
+ * record construction, non-array numeric keys and traversal.  Each script
+ * is run both interpreted and compiled to JVM bytecode.
+ * <p>
+ * The interpreter loop dominates the script timings, so the table access
+ * patterns are also replayed directly against the table API, once on
+ * {@link LuaTable} and once on {@link HashtableLuaTable}, the
+ * <code>java.util.Hashtable</code> based table it replaced.  That gives a
+ * baseline to read the gain against.
+ *
+ * Run with <code>sbt "lua/Test/runMain moe.lymia.lua.LuaTableBenchmark"</code>.
+ */
+public final class LuaTableBenchmark {
+    private static final int WARMUP = 10;
+    private static final int RUNS = 21;
+
+    private static final String[][] CASES = {
+        {"field access", String.join("\n",
+            "local t = {}",
+            "for i = 1, 32 do t['field' .. i] = i end",
+            "local sum = 0",
+            "for n = 1, 200000 do",
+            "  sum = sum + t.field1 + t.field9 + t.field17 + t.field32",
+            "  t.field2 = n",
+            "end",
+            "return sum")},
+        {"record creation", String.join("\n",
+            "local last",
+            "for n = 1, 100000 do",
+            "  local r = {}",
+            "  r.name = 'card'; r.cost = n; r.kind = 'spell'; r.text = 'text'; r.rarity = 3",
+            "  last = r",
+            "end",
+            "return last.cost")},
+        {"numeric keys", String.join("\n",
+            "local t = {}",
+            "for i = 1, 2000 do t[i * 7.5] = i; t[-i] = i end",
+            "local sum = 0",
+            "for n = 1, 50 do",
+            "  for i = 1, 2000 do sum = sum + t[i * 7.5] + t[-i] end",
+            "end",
+            "return sum")},
+        {"global access", String.join("\n",
+            "local sum = 0",
+            "for n = 1, 100000 do",
+            "  sum = sum + math.floor(n / 2) + string.len(tostring(n))",
+            "end",
+            "return sum")},
+        {"__index methods", String.join("\n",
+            "local cls = {}",
+            "cls.__index = cls",
+            "function cls:get() return self.v end",
+            "local o = setmetatable({v = 1}, cls)",
+            "local sum = 0",
+            "for n = 1, 200000 do sum = sum + o:get() + o.v end",
+            "return sum")},
+        {"traversal", String.join("\n",
+            "local t = {}",
+            "for i = 1, 200 do t['k' .. i] = i end",
+            "local sum = 0",
+            "for n = 1, 500 do",
+            "  for k, v in pairs(t) do sum = sum + v end",
+            "end",
+            "return sum")},
+        {"next traversal", String.join("\n",
+            "local t = {}",
+            "for i = 1, 10000 do t['k' .. i] = i end",
+            "local sum = 0",
+            "local k, v = next(t)",
+            "while k do sum = sum + v; k, v = next(t, k) end",
+            "return sum")},
+        {"arithmetic", String.join("\n",
+            "local sum = 0",
+            "for n = 1, 300000 do",
+            "  local x = n % 7",
+            "  if x < 3 then sum = sum + x * 2 else sum = sum - x / 2 end",
+            "end",
+            "return sum")},
+    };
+
+    /** The raw table operations the table API cases use. */
+    private interface Table {
+        Object get(Object key);
+
+        void put(Object key, Object value);
+
+        java.util.Enumeration<Object> keys();
+    }
+
+    private interface TableFactory {
+        Table create();
+    }
+
+    private static final TableFactory OPEN_ADDRESSING = () -> {
+        LuaTable t = new LuaTable();
+        return new Table() {
+            public Object get(Object key) {
+                return t.getlua(key);
+            }
+
+            public void put(Object key, Object value) {
+                t.putlua(null, key, value);
+            }
+
+            public java.util.Enumeration<Object> keys() {
+                return t.keys();
+            }
+        };
+    };
+
+    private static final TableFactory HASHTABLE = () -> {
+        HashtableLuaTable t = new HashtableLuaTable();
+        return new Table() {
+            public Object get(Object key) {
+                return t.getlua(key);
+            }
+
+            public void put(Object key, Object value) {
+                t.putlua(key, value);
+            }
+
+            public java.util.Enumeration<Object> keys() {
+                return t.luaKeys();
+            }
+        };
+    };
+
+    private interface TableCase {
+        double run(TableFactory f);
+    }
+
+    private static final String[] FIELDS = new String[32];
+    private static final Double[] NUMERIC_KEYS = new Double[4000];
+
+    static {
+        for (int i = 0; i < FIELDS.length; i++) {
+            FIELDS[i] = ("field" + (i + 1)).intern();
+        }
+        for (int i = 0; i < NUMERIC_KEYS.length / 2; i++) {
+            NUMERIC_KEYS[i * 2] = (i + 1) * 7.5;
+            NUMERIC_KEYS[i * 2 + 1] = (double) -(i + 1);
+        }
+    }
+
+    private static double num(Object o) {
+        return (Double) o;
+    }
+
+    private static final Object[][] TABLE_CASES = {
+        {"field access", (TableCase) f -> {
+            Table t = f.create();
+            for (int i = 0; i < FIELDS.length; i++) {
+                t.put(FIELDS[i], (double) (i + 1));
+            }
+            double sum = 0;
+            for (int n = 1; n <= 2000000; n++) {
+                sum += num(t.get(FIELDS[0])) + num(t.get(FIELDS[8]))
+                        + num(t.get(FIELDS[16])) + num(t.get(FIELDS[31]));
+                t.put(FIELDS[1], (double) n);
+            }
+            return sum;
+        }},
+        {"record creation", (TableCase) f -> {
+            Table last = null;
+            for (int n = 1; n <= 1000000; n++) {
+                Table r = f.create();
+                r.put("name", "card");
+                r.put("cost", (double) n);
+                r.put("kind", "spell");
+                r.put("text", "text");
+                r.put("rarity", 3.0);
+                last = r;
+            }
+            return num(last.get("cost"));
+        }},
+        {"numeric keys", (TableCase) f -> {
+            Table t = f.create();
+            for (int i = 0; i < NUMERIC_KEYS.length; i++) {
+                t.put(NUMERIC_KEYS[i], (double) i);
+            }
+            double sum = 0;
+            for (int n = 0; n < 500; n++) {
+                for (Double key : NUMERIC_KEYS) {
+                    sum += num(t.get(key));
+                }
+            }
+            return sum;
+        }},
+        {"traversal", (TableCase) f -> {
+            Table t = f.create();
+            for (int i = 1; i <= 200; i++) {
+                t.put("k" + i, (double) i);
+            }
+            double sum = 0;
+            for (int n = 0; n < 5000; n++) {
+                java.util.Enumeration<Object> e = t.keys();
+                while (e.hasMoreElements()) {
+                    sum += num(t.get(e.nextElement()));
+                }
+            }
+            return sum;
+        }},
+    };
+
+    private LuaTableBenchmark() {
+    }
+
+    private static long runOnce(Lua L) {
+        L.pushValue(-1);
+        long start = System.nanoTime();
+        L.call(0, 0);
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("Lua scripts:");
+        for (String[] c : CASES) {
+            run(c, 0, "interpreted");
+            run(c, 1, "compiled");
+        }
+        System.out.println();
+        System.out.println("Table API:");
+        for (Object[] c : TABLE_CASES) {
+            run((String) c[0], (TableCase) c[1], HASHTABLE, "hashtable");
+            run((String) c[0], (TableCase) c[1], OPEN_ADDRESSING, "open address");
+        }
+    }
+
+    private static double sink;
+
+    private static void run(String name, TableCase c, TableFactory f, String mode) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += c.run(f);
+        }
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            sink += c.run(f);
+            times[i] = System.nanoTime() - start;
+        }
+        report(name, mode, times);
+    }
+
+    private static void run(String[] c, int compileThreshold, String mode) {
+        Lua L = new Lua();
+        L.setCompileThreshold(compileThreshold);
+        BaseLib.open(L);
+        MathLib.open(L);
+        StringLib.open(L);
+        TableLib.open(L);
+        if (L.loadString(c[1], "=" + c[0]) != 0) {
+            throw new RuntimeException(L.toString(L.value(-1)));
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            runOnce(L);
+        }
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            times[i] = runOnce(L);
+        }
+        report(c[0], mode, times);
+    }
+
+    private static void report(String name, String mode, long[] times) {
+        java.util.Arrays.sort(times);
+        System.out.printf("%-16s %-12s median %8.2f ms   min %8.2f ms%n",
+                name, mode, times[RUNS / 2] / 1e6, times[0] / 1e6);
+    }
+}
@@ -1,12 +1,25 @@
 package moe.lymia.princess.native.svg
 
+import moe.lymia.princess.native.NativeException
 import moe.lymia.princess.native.fonts.FontDatabase
 
 private class Resvg {
-  @native def renderNative(input: String, resourcePath: String, fontDb: Int, w: Int, h: Int): Array[Byte]
+  @native def renderRawNative(input: String, resourcePath: String, fontDb: Int, w: Int, h: Int,
+                              target: Array[Byte]): Unit
 }
 object Resvg {
   private val instance = new Resvg
-  def render(svg: String, resourcePath: Option[String], fontDb: FontDatabase, w: Int, h: Int): Array[Byte] =
-    instance.renderNative(svg, resourcePath.orNull, fontDb.id, w, h)
-}
\ No newline at end of file
+
+  // Renders into `target` as premultiplied RGBA, with rows packed together with no padding.
+  def renderRaw(svg: String, resourcePath: Option[String], fontDb: FontDatabase, w: Int, h: Int,
+                target: Array[Byte]): Unit = {
+    if (target.length.toLong != w.toLong * h.toLong * 4)
+      throw new NativeException(s"Target array for a ${w}x$h image must be ${w * h * 4} bytes!")
+    instance.renderRawNative(svg, resourcePath.orNull, fontDb.id, w, h, target)
+  }
+  def renderRaw(svg: String, resourcePath: Option[String], fontDb: FontDatabase, w: Int, h: Int): Array[Byte] = {
+    val target = new Array[Byte](w * h * 4)
+    renderRaw(svg, resourcePath, fontDb, w, h, target)
+    target
+  }
+}
@@ -40,7 +40,7 @@ fn render_svg(
     svg: &str,
     resource_dir: Option<&Path>,
     font_db: &Database,
-) -> Vec<u8> {
+) -> Pixmap {
     let usvg_options = Options::default();
     let mut usvg_options = usvg_options.to_ref();
     usvg_options.resources_dir = resource_dir;
@@ -55,11 +55,11 @@ fn render_svg(
         Transform::identity(),
         pixmap.as_mut(),
     );
-    pixmap.encode_png().expect("Failed to encode pixmap as BMP!")
+    pixmap
 }
 
 #[no_mangle]
-pub extern "system" fn Java_moe_lymia_princess_native_svg_Resvg_renderNative(
+pub extern "system" fn Java_moe_lymia_princess_native_svg_Resvg_renderRawNative(
     env: JNIEnv,
     _class: JClass<'_>,
     input: JString<'_>,
@@ -67,8 +67,9 @@ pub extern "system" fn Java_moe_lymia_princess_native_svg_Resvg_renderNative(
     font_db: jint,
     w: jint,
     h: jint,
-) -> jbyteArray {
-    catch_panic_jobject(&env, || {
+    target: jbyteArray,
+) {
+    catch_panic_void(&env, || {
         let input = jstring_unwrap(&env, input);
         let resource_path = if resource_path.is_null() {
             None
@@ -77,6 +78,9 @@ pub extern "system" fn Java_moe_lymia_princess_native_svg_Resvg_renderNative(
         };
 
         assert!(w > 0 && h > 0);
+        let target_len = env.get_array_length(target).expect("Could not get target length!");
+        assert_eq!(target_len as usize, w as usize * h as usize * 4, "Target array has the wrong size!");
+
         let db = crate::classes::font_database::get_database(font_db);
         let db = db.read();
         let rendered = render_svg(
@@ -88,6 +92,8 @@ pub extern "system" fn Java_moe_lymia_princess_native_svg_Resvg_renderNative(
         );
         mem::drop(db);
 
-        env.byte_array_from_slice(&rendered).expect("Could not encode as byte array!")
+        // the pixmap is already premultiplied RGBA with no row padding, so it can be copied out as-is
+        env.set_byte_array_region(target, 0, bytemuck::cast_slice(rendered.data()))
+            .expect("Could not copy pixmap into target array!");
     })
 }
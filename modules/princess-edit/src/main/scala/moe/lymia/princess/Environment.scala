@@ -59,6 +59,8 @@ object Platform {
 
 object Environment {
   val isNativeImage: Boolean = System.getProperty("org.graalvm.nativeimage.kind") != null
+  // Compiling hot Lua functions to JVM bytecode is opt in for now.
+  val compileLuaFunctions: Boolean = System.getProperty("princessedit.lua.compile") != null
   private lazy val isSbtLaunch: Boolean =
     System.getProperty("princessedit.baseDirectory") != null &&
     System.getProperty("princessedit.native.bin") != null
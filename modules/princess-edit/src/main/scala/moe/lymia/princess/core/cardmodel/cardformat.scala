@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.core.cardmodel
+
+import moe.lymia.princess.util.IOUtils
+import play.api.libs.json._
+
+import java.io.{ByteArrayOutputStream, DataOutputStream}
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Path
+import java.util.UUID
+import scala.collection.mutable
+
+// A card as it was saved, before it's parsed into a CardData.
+private[cardmodel] sealed trait SavedCard {
+  // The card's fields, as a DataStore holds them.
+  def fields: Map[String, DataField]
+  // The card in the layout of cards/<uuid>.json.
+  def json: JsObject
+  def jsonBytes: Array[Byte] = Json.prettyPrint(json).getBytes(StandardCharsets.UTF_8)
+  // Writes the card's fields in the layout of the data section of cards.bin.
+  def writeBinary(out: DataOutputStream, strings: BinaryCardFormat.StringTable): Unit =
+    BinaryCardFormat.writeFields(out, fields, strings)
+}
+
+private[cardmodel] object SavedCard {
+  def json(fields: Map[String, DataField], createTime: Long, modifyTime: Long): JsObject = Json.obj(
+    "fields" -> JsObject(fields.toSeq.map { case (k, v) => k -> v.serialize }),
+    "create" -> createTime,
+    "modify" -> modifyTime
+  )
+}
+
+private[cardmodel] final case class JsonSavedCard(data: Array[Byte]) extends SavedCard {
+  override def json: JsObject = Json.parse(data).as[JsObject]
+  override def fields: Map[String, DataField] =
+    (json \ "fields").as[Map[String, JsValue]].map { case (k, v) => k -> DataField.deserialize(v) }
+  override def jsonBytes: Array[Byte] = data
+}
+
+private[cardmodel] final class BinarySavedCard(val file: BinaryCardFile, val createTime: Long, val modifyTime: Long,
+                                               offset: Int, length: Int) extends SavedCard {
+  override def fields: Map[String, DataField] = file.decodeFields(offset, length)
+  override def json: JsObject = SavedCard.json(fields, createTime, modifyTime)
+  override def writeBinary(out: DataOutputStream, strings: BinaryCardFormat.StringTable): Unit =
+    file.transcodeFields(out, offset, length, strings)
+}
+
+private[cardmodel] final class ColumnarSavedCard(store: ColumnStore, row: Int, createTime: Long, modifyTime: Long)
+  extends SavedCard {
+  override def fields: Map[String, DataField] = store.fields(row)
+  override def json: JsObject = SavedCard.json(fields, createTime, modifyTime)
+  override def writeBinary(out: DataOutputStream, strings: BinaryCardFormat.StringTable): Unit =
+    store.writeRow(out, row, strings)
+}
+
+// A card to be written to cards.bin, either as it was saved or from its current fields.
+private[cardmodel] final case class BinaryCardEntry(id: UUID, createTime: Long, modifyTime: Long,
+                                                    content: Either[SavedCard, Map[String, DataField]])
+
+// The binary layout for a project's cards, used from file format version 2 on. All cards are stored in cards.bin:
+//
+//   magic "PECB", then an int layout version
+//   string table: an int count, then each string as an int length and its UTF-8 bytes. Holds the field names.
+//   index: an int count, then for each card its UUID as two longs, its create and modify times as longs, and the int
+//          offset and length of its data, relative to the start of the data section
+//   data: for each card, an int field count, then for each field the int string table index of its name, a byte
+//         type tag and the value for that tag
+//
+// Numbers are big endian. The index allows any card to be decoded without reading the others.
+//
+// When the file is written again, its string table is kept as a prefix of the new one, so the data of cards that
+// haven't been parsed since can be copied over unchanged instead of being decoded and encoded again.
+private[cardmodel] object BinaryCardFormat {
+  val FileName = "cards.bin"
+
+  private[cardmodel] val Magic = 0x50454342 // "PECB"
+  private[cardmodel] val Version = 1
+
+  private final val TagNil    = 0
+  private final val TagInt    = 1
+  private final val TagDouble = 2
+  private final val TagString = 3
+  private final val TagFalse  = 4
+  private final val TagTrue   = 5
+
+  def writeString(out: DataOutputStream, s: String): Unit = {
+    val bytes = s.getBytes(StandardCharsets.UTF_8)
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+  def readString(buffer: ByteBuffer): String = {
+    val bytes = new Array[Byte](buffer.getInt())
+    buffer.get(bytes)
+    new String(bytes, StandardCharsets.UTF_8)
+  }
+
+  // Also used for the records of ProjectJournal.
+  def writeField(out: DataOutputStream, field: DataField): Unit = field.t match {
+    case DataFieldType.Nil => out.writeByte(TagNil)
+    case DataFieldType.Int =>
+      out.writeByte(TagInt)
+      out.writeInt(field.value.asInstanceOf[Int])
+    case DataFieldType.Double =>
+      out.writeByte(TagDouble)
+      out.writeDouble(field.value.asInstanceOf[Double])
+    case DataFieldType.String =>
+      out.writeByte(TagString)
+      writeString(out, field.value.asInstanceOf[String])
+    case DataFieldType.Boolean =>
+      out.writeByte(if(field.value.asInstanceOf[Boolean]) TagTrue else TagFalse)
+  }
+  def readField(buffer: ByteBuffer): DataField = buffer.get().toInt match {
+    case TagNil    => DataField.Nil
+    case TagInt    => DataField(DataFieldType.Int, buffer.getInt())
+    case TagDouble => DataField(DataFieldType.Double, buffer.getDouble())
+    case TagString => DataField(DataFieldType.String, readString(buffer))
+    case TagFalse  => DataField.False
+    case TagTrue   => DataField.True
+    case tag       => sys.error(s"unknown field tag $tag")
+  }
+
+  // The string table of a file being written, starting with the strings of `base`.
+  final class StringTable(val base: Option[BinaryCardFile]) {
+    private val names = new mutable.ArrayBuffer[String]
+    private val indexes = new mutable.HashMap[String, Int]
+    for(file <- base; name <- file.strings) {
+      indexes.getOrElseUpdate(name, names.length)
+      names += name
+    }
+
+    def apply(name: String): Int = indexes.getOrElseUpdate(name, {
+      names += name
+      names.length - 1
+    })
+    def strings: collection.Seq[String] = names
+  }
+
+  def writeFields(out: DataOutputStream, fields: Map[String, DataField], strings: StringTable): Unit = {
+    out.writeInt(fields.size)
+    for((name, field) <- fields) {
+      out.writeInt(strings(name))
+      writeField(out, field)
+    }
+  }
+
+  def write(path: Path, cards: Seq[BinaryCardEntry]): Unit = {
+    // Cards are normally all read from the same file, the one this is replacing.
+    val strings = new StringTable(cards.iterator.map(_.content).collectFirst {
+      case Left(card: BinarySavedCard) => card.file
+    })
+    val dataBytes = new ByteArrayOutputStream()
+    val data = new DataOutputStream(dataBytes)
+    val offsets = for(card <- cards) yield {
+      val start = data.size()
+      card.content match {
+        case Left(saved) => saved.writeBinary(data, strings)
+        case Right(fields) => writeFields(data, fields, strings)
+      }
+      (start, data.size() - start)
+    }
+    data.flush()
+
+    val fileBytes = new ByteArrayOutputStream(dataBytes.size() + cards.length * 40 + 1024)
+    val out = new DataOutputStream(fileBytes)
+    out.writeInt(Magic)
+    out.writeInt(Version)
+    out.writeInt(strings.strings.length)
+    for(name <- strings.strings) writeString(out, name)
+    out.writeInt(cards.length)
+    for((card, (offset, length)) <- cards.zip(offsets)) {
+      out.writeLong(card.id.getMostSignificantBits)
+      out.writeLong(card.id.getLeastSignificantBits)
+      out.writeLong(card.createTime)
+      out.writeLong(card.modifyTime)
+      out.writeInt(offset)
+      out.writeInt(length)
+    }
+    dataBytes.writeTo(out)
+    out.flush()
+    IOUtils.writeFile(path, fileBytes.toByteArray)
+  }
+}
+
+// A cards.bin file that has been read into memory. Only the string table and index are decoded up front.
+private[cardmodel] final class BinaryCardFile(data: Array[Byte]) {
+  import BinaryCardFormat._
+
+  private val (names, cards0, dataStart) = {
+    val buffer = ByteBuffer.wrap(data)
+    if(buffer.getInt() != Magic) sys.error(s"$FileName is not a card file")
+    val version = buffer.getInt()
+    if(version != Version) sys.error(s"unknown $FileName version $version")
+    val strings = Array.fill(buffer.getInt())(readString(buffer))
+    val index = Seq.fill(buffer.getInt()) {
+      val id = new UUID(buffer.getLong(), buffer.getLong())
+      (id, buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt())
+    }
+    (strings, index, buffer.position())
+  }
+
+  def strings: Seq[String] = names.toSeq
+  val cards: Seq[(UUID, BinarySavedCard)] = cards0.map { case (id, createTime, modifyTime, offset, length) =>
+    id -> new BinarySavedCard(this, createTime, modifyTime, offset, length)
+  }
+
+  def decodeFields(offset: Int, length: Int): Map[String, DataField] = {
+    val buffer = ByteBuffer.wrap(data, dataStart + offset, length)
+    Seq.fill(buffer.getInt()) {
+      val name = names(buffer.getInt())
+      name -> readField(buffer)
+    }.toMap
+  }
+  // Writes a card's data into a file with the string table `to`. It's copied as is when `to` starts with this file's
+  // string table, and otherwise only the name indexes are rewritten.
+  def transcodeFields(out: DataOutputStream, offset: Int, length: Int, to: StringTable): Unit =
+    if(to.base.contains(this)) out.write(data, dataStart + offset, length)
+    else {
+      val buffer = ByteBuffer.wrap(data, dataStart + offset, length)
+      val count = buffer.getInt()
+      out.writeInt(count)
+      for(_ <- 0 until count) {
+        out.writeInt(to(names(buffer.getInt())))
+        writeField(out, readField(buffer))
+      }
+    }
+}
@@ -23,15 +23,72 @@
 package moe.lymia.princess.core.cardmodel
 
 import moe.lymia.lua.{Lua, _}
+import moe.lymia.princess.util.IOUtils
+import play.api.libs.json._
 import rx._
 
+import java.nio.file.Path
 import java.util.UUID
 import scala.collection.mutable
 
 final class CardData(protected val project: Project)
-  extends JsonPathSerializable with HasModifyTimeDataStore with RefCount {
+  extends JsonPathSerializable with HasModifyTimeDataStore with TrackDirty with RefCount {
 
-  val root = project.idData.card.createRoot(fields, Seq())
+  // The card as it was saved, when it was read with readLazily and hasn't been parsed yet.
+  @volatile private var unparsed: Option[SavedCard] = None
+  @volatile private var root0: DataRoot = _
+
+  // Parsing is done on the Lua thread, as with the card's other data.
+  def root: DataRoot = {
+    if(root0 == null) project.ctx.syncLuaExec {
+      if(root0 == null) {
+        hydrate()
+        root0 = project.idData.card.createRoot(fields, Seq())
+      }
+    }
+    root0
+  }
+
+  private def hydrate(): Unit = for(card <- unparsed) {
+    unparsed = None
+    withoutModifications(fields.load(card.fields))
+  }
+
+  // Reads the card without parsing it. The times that would have been parsed from it come from the project's card
+  // metadata instead, and the rest is parsed when the card's data is first needed.
+  private[cardmodel] def readLazily(card: SavedCard, createTime: Long, modifyTime: Long): Unit = {
+    unparsed = Some(card)
+    this.createTime = createTime
+    this.modifyTime = modifyTime
+    markClean()
+  }
+  // Like readFrom, for a card that was already parsed.
+  def readFrom(json: JsObject): Unit = {
+    deserialize(json)
+    markClean()
+  }
+
+  // Sets a field, parsing the card first if it hasn't been yet. Must be called on the Lua thread.
+  private[cardmodel] def updateField(name: String, field: DataField): Unit = {
+    hydrate()
+    fields.getDataField(name).update(field)
+  }
+  // Doesn't parse the card if it hasn't been yet.
+  private[cardmodel] def snapshot(): CardSnapshot =
+    new CardSnapshot(createTime, modifyTime, unparsed.toLeft(fields.values), takeDirty())
+
+  override def serialize: JsObject = unparsed match {
+    case Some(card) => card.json
+    case None => super.serialize
+  }
+  override def deserialize(js: JsObject): Unit = {
+    unparsed = None
+    super.deserialize(js)
+  }
+  override def writeTo(path: Path): Unit = unparsed match {
+    case Some(card) => IOUtils.writeFile(path, card.jsonBytes) // unchanged since it was read
+    case None => super.writeTo(path)
+  }
 }
 
 private final class MergeLuaTable(tables: Any*) {
@@ -56,11 +113,64 @@ private object MergeLuaTable {
 final case class FullCardData(uuid: UUID, project: Project, cardData: CardData, sourceInfo: ViewInfo,
                               globalData: Rx[Option[Any]])
                              (implicit owner: Ctx.Owner){
-  val luaData = Rx {
-    val table: Seq[Any] = Seq(cardData.root.luaData(), sourceInfo.root.luaData())
-    new MergeLuaTable(globalData().fold(table)(_ +: table) : _*).toLua(project.idData.internal_L)
+  private var hasLuaData = false
+  @volatile private var dataVersion0 = 0L
+
+  // lazy, so that cards are only parsed once something actually uses their data
+  lazy val luaData = {
+    hasLuaData = true
+    Rx {
+      val table: Seq[Any] = Seq(cardData.root.luaData(), sourceInfo.root.luaData())
+      dataVersion0 += 1
+      new MergeLuaTable(globalData().fold(table)(_ +: table) : _*).toLua(project.idData.internal_L)
+    }
+  }
+  // Incremented whenever luaData is recomputed. 0 if it hasn't been computed yet.
+  def dataVersion: Long = dataVersion0
+
+  // Column values are only computed once something displays or sorts by them, and are kept until luaData changes.
+  private val columnCache = new mutable.HashMap[TableColumnData, String]()
+  private val sortKeyCache = new mutable.HashMap[TableColumnData, Any]()
+  private var columnCacheVersion = 0L
+  private def validateColumnCache(): Unit = {
+    project.ctx.assertLuaThread()
+    luaData.now
+    if(columnCacheVersion != dataVersion0) {
+      columnCache.clear()
+      sortKeyCache.clear()
+      columnCacheVersion = dataVersion0
+    }
+  }
+  def columnValue(column: TableColumnData): String = {
+    validateColumnCache()
+    columnCache.getOrElseUpdate(column, column.computeColumnData(luaData.now))
   }
-  val columnData = Rx {
-    project.idData.columns.columns.map(f => f -> f.computeColumnData(luaData())).toMap
+  def columnValues(columns: Seq[TableColumnData]): Seq[String] = columns.map(columnValue)
+
+  // Kills the Rxs that have been created so far, without forcing the ones that haven't.
+  private[cardmodel] def kill(): Unit = {
+    if(hasLuaData) luaData.kill()
+  }
+}
+object FullCardData {
+  // Computes a column for many cards, evaluating the ones that aren't cached in a single batch.
+  def columnValues(column: TableColumnData, cards: Seq[FullCardData]): Seq[String] = {
+    val missing = cards.filter { card =>
+      card.validateColumnCache()
+      !card.columnCache.contains(column)
+    }
+    val values = column.computeColumnDataBatch(missing.map(_.luaData.now))
+    for((card, value) <- missing.zip(values)) card.columnCache.put(column, value)
+    cards.map(_.columnCache(column))
+  }
+  // Computes the sort keys of a column for many cards, in the same way. See TableColumnData.computeSortKeys.
+  def sortKeys(column: TableColumnData, cards: Seq[FullCardData]): Seq[Any] = {
+    val missing = cards.filter { card =>
+      card.validateColumnCache()
+      !card.sortKeyCache.contains(column)
+    }
+    val keys = column.computeSortKeys(missing.map(_.luaData.now), columnValues(column, missing))
+    for((card, key) <- missing.zip(keys)) card.sortKeyCache.put(column, key)
+    cards.map(_.sortKeyCache(column))
   }
 }
\ No newline at end of file
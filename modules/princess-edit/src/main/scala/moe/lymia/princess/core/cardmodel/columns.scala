@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.core.cardmodel
+
+import java.io.DataOutputStream
+import java.util
+import java.util.UUID
+import scala.collection.mutable
+
+// Column-oriented storage for the fields of cards that haven't been parsed into a DataStore yet, used when loading
+// large projects. Each field name has a column, with a type tag per card and the value in a primitive array: ints and
+// doubles directly, booleans in the tag itself, and strings as indexes into a dictionary shared by every column. This
+// avoids the DataField, boxed value and map entry each field of each card would otherwise need.
+//
+// The store is filled in while loading, and only read after that.
+private[cardmodel] final class ColumnStore {
+  import ColumnStore._
+
+  private var rowCount = 0
+  private var capacity = 16
+  private val rows = new mutable.HashMap[UUID, Int]
+
+  private val columns = new mutable.LinkedHashMap[String, Column]
+  private val strings = new mutable.ArrayBuffer[String]
+  private val stringIds = new mutable.HashMap[String, Int]
+
+  private final class Column {
+    var tags = new Array[Byte](capacity)
+    var values = new Array[Long](capacity)
+
+    def get(row: Int): Option[DataField] = tags(row) match {
+      case TagAbsent => None
+      case TagNil    => Some(DataField.Nil)
+      case TagInt    => Some(DataField(DataFieldType.Int, values(row).toInt))
+      case TagDouble => Some(DataField(DataFieldType.Double, java.lang.Double.longBitsToDouble(values(row))))
+      case TagString => Some(DataField(DataFieldType.String, strings(values(row).toInt)))
+      case TagFalse  => Some(DataField.False)
+      case TagTrue   => Some(DataField.True)
+    }
+    def set(row: Int, field: DataField): Unit = field.t match {
+      case DataFieldType.Nil => tags(row) = TagNil
+      case DataFieldType.Int =>
+        tags(row) = TagInt
+        values(row) = field.value.asInstanceOf[Int]
+      case DataFieldType.Double =>
+        tags(row) = TagDouble
+        values(row) = java.lang.Double.doubleToRawLongBits(field.value.asInstanceOf[Double])
+      case DataFieldType.String =>
+        val str = field.value.asInstanceOf[String]
+        tags(row) = TagString
+        values(row) = stringIds.getOrElseUpdate(str, {
+          strings += str
+          strings.length - 1
+        })
+      case DataFieldType.Boolean =>
+        tags(row) = if(field.value.asInstanceOf[Boolean]) TagTrue else TagFalse
+    }
+    def grow(): Unit = {
+      tags = util.Arrays.copyOf(tags, capacity)
+      values = util.Arrays.copyOf(values, capacity)
+    }
+  }
+
+  def size: Int = rowCount
+  def row(id: UUID): Option[Int] = rows.get(id)
+
+  // Adds a card as a new row, and returns the row's index.
+  def add(id: UUID, fields: Map[String, DataField]): Int = {
+    if(rowCount == capacity) {
+      capacity *= 2
+      columns.values.foreach(_.grow())
+    }
+    val row = rowCount
+    rowCount += 1
+    rows.put(id, row)
+    for((name, field) <- fields) columns.getOrElseUpdate(name, new Column).set(row, field)
+    row
+  }
+
+  def get(row: Int, name: String): Option[DataField] = columns.get(name).flatMap(_.get(row))
+  def fields(row: Int): Map[String, DataField] =
+    columns.iterator.flatMap { case (name, column) => column.get(row).map(name -> _) }.toMap
+  // Writes a row in the layout of the data section of cards.bin, without building the map `fields` would.
+  def writeRow(out: DataOutputStream, row: Int, strings: BinaryCardFormat.StringTable): Unit = {
+    out.writeInt(columns.valuesIterator.count(_.tags(row) != TagAbsent))
+    for((name, column) <- columns; field <- column.get(row)) {
+      out.writeInt(strings(name))
+      BinaryCardFormat.writeField(out, field)
+    }
+  }
+}
+private[cardmodel] object ColumnStore {
+  // Projects with fewer cards than this keep them as slices of cards.bin instead.
+  val MinCards = 5000
+
+  private final val TagAbsent: Byte = 0
+  private final val TagNil: Byte = 1
+  private final val TagInt: Byte = 2
+  private final val TagDouble: Byte = 3
+  private final val TagString: Byte = 4
+  private final val TagFalse: Byte = 5
+  private final val TagTrue: Byte = 6
+}
@@ -81,13 +81,21 @@ object DataField {
   }
 }
 
+// `oldValue` is None when the field was just created.
+final case class FieldChange(name: String, oldValue: Option[DataField], newValue: DataField) {
+  // Creating a field with its default value isn't an edit, as the default is created again when the data is loaded.
+  def isModification: Boolean = oldValue.exists(_ != newValue)
+}
+
 final class DataStore {
   private val fieldsVar = new mutable.HashMap[String, Var[DataField]]
   private val fieldsObses = new mutable.ArrayBuffer[Obs]()
 
-  val fields = Rx.unsafe { fieldsVar.map(x => x.copy(_2 = x._2())).toMap }
+  // Updated field by field as they change, so taking a copy of the fields is free.
+  @volatile private var values0 = Map.empty[String, DataField]
+  def values: Map[String, DataField] = values0
 
-  type ChangeListener = (String, DataField) => Unit
+  type ChangeListener = FieldChange => Unit
   private val listeners = new mutable.ArrayBuffer[ChangeListener]()
   def addChangeListener(l: ChangeListener)  = listeners += l
 
@@ -96,26 +104,29 @@ final class DataStore {
       import Ctx.Owner.Unsafe._
 
       val newVar = Var(default)
-      newVar.foreach(x =>
-        listeners.foreach(f => f(name, x))
-      )
       fieldsVar.put(name, newVar)
-      fields.recalc()
+      var lastValue: Option[DataField] = None
+      fieldsObses += newVar.foreach { x =>
+        val change = FieldChange(name, lastValue, x)
+        lastValue = Some(x)
+        values0 = values0.updated(name, x)
+        listeners.foreach(f => f(change))
+      }
     }
     fieldsVar(name)
   }
 
-  def deserialize(json: JsValue) = {
-    val map = json.as[Map[String, JsValue]]
-    for((k, v) <- map) getDataField(k).update(DataField.deserialize(v))
+  def load(map: Map[String, DataField]) = {
+    for((k, v) <- map) getDataField(k).update(v)
     for((k, v) <- fieldsVar if !map.contains(k)) getDataField(k).update(DataField.Nil)
-    fields.recalc()
   }
-  def serialize = Json.toJson(fieldsVar.mapValues(_.now.serialize))
+
+  def deserialize(json: JsValue) =
+    load(json.as[Map[String, JsValue]].map { case (k, v) => k -> DataField.deserialize(v) })
+  def serialize = Json.toJson(values.map { case (k, v) => k -> v.serialize })
 
   def kill() = {
     for((_, rx) <- fieldsVar) rx.kill()
     for(obs <- fieldsObses) obs.kill()
-    fields.kill()
   }
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.core.cardmodel
+
+import moe.lymia.princess.core.state.TaskPriority
+import play.api.libs.json._
+
+import java.io._
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import scala.collection.mutable
+
+// A column of an imported file, and the card field it's imported into. Columns are named either `field` or
+// `field:type`, where `type` is the name of a DataFieldType.
+final case class ImportColumn(field: String, fieldType: Option[DataFieldType[_]])
+object ImportColumn {
+  def parse(name: String): ImportColumn = name.lastIndexOf(':') match {
+    case -1 => ImportColumn(name.trim, None)
+    case i => DataFieldType.typeMap.get(name.substring(i + 1).trim) match {
+      case Some(t) => ImportColumn(name.substring(0, i).trim, Some(t))
+      case None => ImportColumn(name.trim, None)
+    }
+  }
+}
+
+sealed abstract class CardImportFormat(val extension: String)
+object CardImportFormat {
+  // Comma separated values, with a header row naming the columns.
+  case object CSV extends CardImportFormat("csv")
+  // One JSON object per line, with the columns as keys.
+  case object JSONLines extends CardImportFormat("jsonl")
+
+  val allFormats: Seq[CardImportFormat] = Seq(CSV, JSONLines)
+  def forPath(path: Path): Option[CardImportFormat] = {
+    val name = path.getFileName.toString.toLowerCase
+    allFormats.find(x => name.endsWith(s".${x.extension}"))
+  }
+}
+
+// Reads CSV records one at a time, so that files of any size can be read in constant memory.
+private final class CSVReader(in: Reader) {
+  private var next = in.read()
+  if(next == '\uFEFF') next = in.read() // skip the byte order mark
+
+  private def advance(): Int = {
+    val ch = next
+    next = in.read()
+    ch
+  }
+
+  // The record, or None at the end of the file.
+  def readRecord(): Option[IndexedSeq[String]] = if(next == -1) None else {
+    val fields = IndexedSeq.newBuilder[String]
+    val field = new java.lang.StringBuilder()
+    var inQuotes = false
+    var done = false
+    while(!done) advance() match {
+      case -1 =>
+        if(inQuotes) sys.error("unterminated quoted field")
+        done = true
+      case '"' if inQuotes =>
+        if(next == '"') field.append(advance().toChar)
+        else inQuotes = false
+      case '"' if field.length == 0 => inQuotes = true
+      case ',' if !inQuotes =>
+        fields += field.toString
+        field.setLength(0)
+      case '\r' if !inQuotes =>
+        if(next == '\n') advance()
+        done = true
+      case '\n' if !inQuotes => done = true
+      case ch => field.append(ch.toChar)
+    }
+    fields += field.toString
+    Some(fields.result())
+  }
+}
+
+// Counts the bytes read from a stream, so that progress can be reported without knowing how many rows there are.
+private final class CountingInputStream(in: InputStream) extends FilterInputStream(in) {
+  @volatile var count = 0L
+  override def read(): Int = {
+    val ch = super.read()
+    if(ch != -1) count += 1
+    ch
+  }
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    val n = super.read(b, off, len)
+    if(n > 0) count += n
+    n
+  }
+}
+
+object CardImporter {
+  // The number of cards created in each transaction on the Lua thread. Only one batch is held in memory at a time.
+  val BatchSize = 500
+
+  // Converts an imported value to a field. Values without a type keep the type they have in the file, which is always
+  // a string for CSV files. Returns None if the field should be left unset, for nulls and empty typed values.
+  def coerce(value: JsValue, fieldType: Option[DataFieldType[_]]): Option[DataField] = (fieldType, value) match {
+    case (_, JsNull) => None
+    case (Some(DataFieldType.String), JsString(s)) => Some(DataField(DataFieldType.String, s))
+    case (Some(_), JsString(s)) if s.trim.isEmpty => None
+
+    case (None, JsString(s)) => Some(DataField(DataFieldType.String, s))
+    case (Some(DataFieldType.String), v @ (JsNumber(_) | JsBoolean(_))) =>
+      Some(DataField(DataFieldType.String, v.toString))
+    case (None, JsBoolean(b)) => Some(DataField.fromBool(b))
+    case (None, JsNumber(n)) =>
+      Some(if(n.isValidInt) DataField(DataFieldType.Int, n.toInt) else DataField(DataFieldType.Double, n.toDouble))
+
+    case (Some(DataFieldType.Nil), _) => Some(DataField.Nil)
+    case (Some(DataFieldType.Int), JsNumber(n)) if n.isValidInt => Some(DataField(DataFieldType.Int, n.toInt))
+    case (Some(DataFieldType.Int), JsString(s)) if s.trim.toIntOption.isDefined =>
+      Some(DataField(DataFieldType.Int, s.trim.toInt))
+    case (Some(DataFieldType.Double), JsNumber(n)) => Some(DataField(DataFieldType.Double, n.toDouble))
+    case (Some(DataFieldType.Double), JsString(s)) if s.trim.toDoubleOption.isDefined =>
+      Some(DataField(DataFieldType.Double, s.trim.toDouble))
+    case (Some(DataFieldType.Boolean), JsBoolean(b)) => Some(DataField.fromBool(b))
+    case (Some(DataFieldType.Boolean), JsNumber(n)) => Some(DataField.fromBool(n.signum != 0))
+    case (Some(DataFieldType.Boolean), JsString(s)) => s.trim.toLowerCase match {
+      case "true" | "yes" | "1" => Some(DataField.True)
+      case "false" | "no" | "0" => Some(DataField.False)
+      case _ => sys.error(s"can't convert '$s' to boolean")
+    }
+
+    case (Some(t), v) => sys.error(s"can't convert $v to ${t.typeName}")
+    case (None, v) => sys.error(s"unsupported value $v")
+  }
+
+  // Calls `row` with the number and columns of each row, until it returns false.
+  private def readRows(format: CardImportFormat, in: Reader)(row: (Int, Seq[(ImportColumn, JsValue)]) => Boolean) =
+    format match {
+      case CardImportFormat.CSV =>
+        val reader = new CSVReader(in)
+        val header = reader.readRecord().getOrElse(Vector()).map(ImportColumn.parse)
+        var rowNumber = 1
+        var more = true
+        var record = reader.readRecord()
+        while(more && record.isDefined) {
+          rowNumber += 1
+          val values = record.get
+          if(values.length > header.length)
+            sys.error(s"row $rowNumber has ${values.length} columns, but the header only has ${header.length}")
+          if(values.exists(_.nonEmpty)) more = row(rowNumber, header.zip(values.map(JsString(_))))
+          record = reader.readRecord()
+        }
+      case CardImportFormat.JSONLines =>
+        val reader = new BufferedReader(in)
+        val columns = new mutable.HashMap[String, ImportColumn]()
+        var rowNumber = 0
+        var more = true
+        var text = reader.readLine()
+        while(more && text != null) {
+          rowNumber += 1
+          if(text.trim.nonEmpty) (try Json.parse(text) catch {
+            case e: Exception => sys.error(s"row $rowNumber is not valid JSON: ${e.getMessage}")
+          }) match {
+            case obj: JsObject =>
+              more = row(rowNumber, obj.fields.map { case (k, v) =>
+                columns.getOrElseUpdate(k, ImportColumn.parse(k)) -> v
+              }.toSeq)
+            case _ => sys.error(s"row $rowNumber is not a JSON object")
+          }
+          text = reader.readLine()
+        }
+    }
+
+  // Imports the cards in `path`, and adds them to `view` if it's given. Cards are created on the Lua thread in
+  // batches of BatchSize, each of them a single transaction. After each batch, `progress` is called with the number of
+  // cards created and bytes read so far, and the import stops if it returns false. Cards from batches that were
+  // already created are kept if the import is stopped or fails.
+  //
+  // Returns the number of cards created. Must not be called on the Lua thread.
+  def importFile(project: Project, path: Path, format: CardImportFormat, view: Option[CardView],
+                 progress: (Int, Long) => Boolean): Int = {
+    val in = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)))
+    try {
+      val reader = new InputStreamReader(in, StandardCharsets.UTF_8)
+      val batch = new mutable.ArrayBuffer[Seq[(String, DataField)]]()
+      var count = 0
+      def createBatch(): Boolean = {
+        project.ctx.syncLuaExec(TaskPriority.Background, project.batch {
+          for(fields <- batch) {
+            val (uuid, _) = project.cards.create(card =>
+              for((name, field) <- fields) card.fields.getDataField(name).update(field))
+            view.foreach(_.addCard(uuid))
+          }
+        })
+        count += batch.length
+        batch.clear()
+        progress(count, in.count)
+      }
+
+      var stopped = false
+      readRows(format, reader) { (rowNumber, row) =>
+        batch += row.flatMap { case (column, value) =>
+          try coerce(value, column.fieldType).map(column.field -> _)
+          catch { case e: Exception => sys.error(s"row $rowNumber, column '${column.field}': ${e.getMessage}") }
+        }
+        if(batch.length >= BatchSize) stopped = !createBatch()
+        !stopped
+      }
+      if(!stopped && batch.nonEmpty) createBatch()
+      count
+    } finally in.close()
+  }
+}
@@ -89,13 +89,43 @@ object RootSource {
 }
 
 final class TableColumnData(val title: String, val width: Int, val isDefault: Boolean,
-                            L: LuaState, fn: LuaClosure, orderFn: Option[LuaClosure]) {
+                            L: LuaState, fn: LuaClosure, orderFn: Option[LuaClosure],
+                            sortKeyFn: Option[LuaClosure] = None) {
   def computeColumnData(v: Any) = L.newThread().call(fn, 1, v).head.as[String]
+  def computeColumnDataBatch(vs: Seq[Any]): Seq[String] = if(vs.isEmpty) Seq() else {
+    val thread = L.newThread()
+    vs.map(v => thread.call(fn, 1, v).head.as[String])
+  }
   def computeOrdering(a: Any, aColumn: String, b: Any, bColumn: String) = orderFn match {
     case Some(order) =>
       L.newThread().call(order, 1, a, b).head.as[Int]
     case None => aColumn.compare(bColumn)
   }
+
+  // Columns with a sort key can be sorted by computing the key once per card, rather than calling orderFn for every
+  // comparison. Without either, the column data is used as the key.
+  val hasSortKey: Boolean = sortKeyFn.isDefined || orderFn.isEmpty
+  // `columns` is only evaluated for columns that don't have a sortKeyFn.
+  def computeSortKeys(vs: Seq[Any], columns: => Seq[String]): Seq[Any] = sortKeyFn match {
+    case Some(keyFn) =>
+      val thread = L.newThread()
+      vs.map(v => thread.call(keyFn, 1, v).head.wrapped match {
+        case n: java.lang.Double => n
+        case s: String => s
+        case x => thread.error(s"sort key must be a number or string, got ${Lua.typeName(Lua.`type`(x))}")
+      })
+    case None => columns
+  }
+}
+object TableColumnData {
+  // Compares keys returned by computeSortKeys. Numbers sort before strings.
+  def compareSortKeys(a: Any, b: Any): Int = (a, b) match {
+    case (a: java.lang.Double, b: java.lang.Double) => a.compareTo(b)
+    case (_: java.lang.Double, _) => -1
+    case (_, _: java.lang.Double) => 1
+    case (a: String, b: String) => a.compareTo(b)
+    case _ => sys.error(s"invalid sort keys: $a, $b")
+  }
 }
 final case class LuaColumnData(columns: Seq[TableColumnData])
 object LuaColumnData {
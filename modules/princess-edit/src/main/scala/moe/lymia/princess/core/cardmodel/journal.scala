@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.core.cardmodel
+
+import moe.lymia.princess.util.IOUtils
+
+import java.io.{ByteArrayOutputStream, DataOutputStream}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.util.UUID
+import java.util.zip.CRC32
+
+private[cardmodel] sealed trait JournalRecord
+private[cardmodel] object JournalRecord {
+  final case class CardCreated(card: UUID, time: Long) extends JournalRecord
+  final case class ViewCreated(view: UUID, time: Long) extends JournalRecord
+  final case class CardField(card: UUID, time: Long, name: String, field: DataField) extends JournalRecord
+  final case class ViewField(view: UUID, time: Long, name: String, field: DataField) extends JournalRecord
+  final case class ViewCardAdded(view: UUID, card: UUID) extends JournalRecord
+  final case class ViewCardRemoved(view: UUID, card: UUID) extends JournalRecord
+
+  private def writeUUID(out: DataOutputStream, id: UUID) = {
+    out.writeLong(id.getMostSignificantBits)
+    out.writeLong(id.getLeastSignificantBits)
+  }
+  private def readUUID(buffer: ByteBuffer) = new UUID(buffer.getLong(), buffer.getLong())
+
+  def encode(record: JournalRecord): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new DataOutputStream(bytes)
+    record match {
+      case CardCreated(card, time) =>
+        out.writeByte(0)
+        writeUUID(out, card)
+        out.writeLong(time)
+      case ViewCreated(view, time) =>
+        out.writeByte(1)
+        writeUUID(out, view)
+        out.writeLong(time)
+      case CardField(card, time, name, field) =>
+        out.writeByte(2)
+        writeUUID(out, card)
+        out.writeLong(time)
+        BinaryCardFormat.writeString(out, name)
+        BinaryCardFormat.writeField(out, field)
+      case ViewField(view, time, name, field) =>
+        out.writeByte(3)
+        writeUUID(out, view)
+        out.writeLong(time)
+        BinaryCardFormat.writeString(out, name)
+        BinaryCardFormat.writeField(out, field)
+      case ViewCardAdded(view, card) =>
+        out.writeByte(4)
+        writeUUID(out, view)
+        writeUUID(out, card)
+      case ViewCardRemoved(view, card) =>
+        out.writeByte(5)
+        writeUUID(out, view)
+        writeUUID(out, card)
+    }
+    out.flush()
+    bytes.toByteArray
+  }
+  def decode(buffer: ByteBuffer): JournalRecord = buffer.get().toInt match {
+    case 0 => CardCreated(readUUID(buffer), buffer.getLong())
+    case 1 => ViewCreated(readUUID(buffer), buffer.getLong())
+    case 2 => CardField(readUUID(buffer), buffer.getLong(), BinaryCardFormat.readString(buffer),
+                        BinaryCardFormat.readField(buffer))
+    case 3 => ViewField(readUUID(buffer), buffer.getLong(), BinaryCardFormat.readString(buffer),
+                        BinaryCardFormat.readField(buffer))
+    case 4 => ViewCardAdded(readUUID(buffer), readUUID(buffer))
+    case 5 => ViewCardRemoved(readUUID(buffer), readUUID(buffer))
+    case tag => sys.error(s"unknown journal record $tag")
+  }
+}
+
+// An append-only journal of the edits made to a project since it was last saved, kept next to the project file so
+// they aren't lost if PrincessEdit exits without saving. It's replayed when the project is opened again, and saving
+// the project compacts it into the project file, starting the journal over.
+//
+// The file starts with the magic "PEJL", an int version, and the UUID and write time of the project file it applies
+// to. Each record after that is an int length, that many bytes of record data, and the CRC32 of the data, so a record
+// that was only partly written when PrincessEdit exited is ignored.
+//
+// Records are buffered in memory, and written out and synced in batches by a background thread.
+final class ProjectJournal private (project: Project, val path: Path, private var channel: FileChannel,
+                                    private var length: Long) {
+  import ProjectJournal._
+
+  // `lock` guards the buffer, and `writeLock` the file. Records are only ever moved from the buffer to the file while
+  // holding both, so recording an edit never waits on the disk.
+  private val lock = new Object
+  private val writeLock = new Object
+  private val buffer = new ByteArrayOutputStream()
+  private val bufferOut = new DataOutputStream(buffer)
+  private var closed = false
+  private var stopFlusher = false
+
+  private[cardmodel] def record(r: JournalRecord): Unit = {
+    val data = JournalRecord.encode(r)
+    val crc = new CRC32()
+    crc.update(data)
+    lock synchronized {
+      if(!closed) {
+        bufferOut.writeInt(data.length)
+        bufferOut.write(data)
+        bufferOut.writeInt(crc.getValue.toInt)
+      }
+    }
+  }
+
+  // Writes out and syncs the records made since the last flush.
+  def flush(): Unit = writeLock synchronized {
+    val data = lock synchronized {
+      val data = buffer.toByteArray
+      buffer.reset()
+      data
+    }
+    if(data.nonEmpty) {
+      writeFully(channel, ByteBuffer.wrap(data), length)
+      channel.force(false)
+      length += data.length
+    }
+  }
+
+  // The position of the next record, for `compact`.
+  def mark(): Long = writeLock synchronized { lock synchronized { length + buffer.size() } }
+
+  // Starts the journal over once the project has been saved to its file. Records made after `mark` was taken may not
+  // have made it into the save, and are kept.
+  //
+  // The new journal is written to a temporary file that then replaces the old one, so a crash part way through leaves
+  // the old journal whole.
+  def compact(mark: Long): Unit = writeLock synchronized {
+    flush()
+    val kept = ByteBuffer.allocate((length - mark).toInt)
+    while(kept.hasRemaining && channel.read(kept, mark + kept.position()) >= 0) { }
+    kept.flip()
+
+    val temp = IOUtils.mapFileName(path, x => s"$x.tmp")
+    val newChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                      StandardOpenOption.READ, StandardOpenOption.WRITE)
+    try {
+      val newLength = writeHeader(newChannel, project) + kept.limit()
+      writeFully(newChannel, kept, HeaderSize)
+      newChannel.force(false)
+      // closed first, as an open file can't be replaced on some platforms
+      channel.close()
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      channel = newChannel
+      length = newLength
+    } catch {
+      case e: Throwable =>
+        newChannel.close()
+        Files.deleteIfExists(temp)
+        if(!channel.isOpen) channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        throw e
+    }
+  }
+
+  // Stopped with a flag rather than by interrupting it, as interrupting a thread in the middle of FileChannel I/O
+  // closes the channel.
+  private val flusher = new Thread() {
+    setName("PrincessEdit journal thread")
+    setDaemon(true)
+    private def waitForFlush(): Boolean = lock synchronized {
+      if(!stopFlusher) lock.wait(FlushInterval)
+      !stopFlusher
+    }
+    override def run(): Unit =
+      while(waitForFlush()) {
+        try flush() catch {
+          case e: Exception => e.printStackTrace()
+        }
+      }
+  }
+  flusher.start()
+
+  // Stops recording. Unless the journal is deleted, the edits recorded so far are replayed when the project is next
+  // opened.
+  def close(delete: Boolean): Unit = {
+    if(project.journal.contains(this)) project.journal = None
+    lock synchronized {
+      stopFlusher = true
+      lock.notifyAll()
+    }
+    flusher.join()
+    if(!delete) flush()
+    lock synchronized { closed = true }
+    writeLock synchronized { channel.close() }
+    if(delete) Files.deleteIfExists(path)
+  }
+}
+object ProjectJournal {
+  private val Magic = 0x50454a4c // "PEJL"
+  private val Version = 1
+  private val HeaderSize = 8 + 16 + 8
+  private val FlushInterval = 500
+
+  def pathFor(projectPath: Path): Path = IOUtils.mapFileName(projectPath, x => s".$x.journal")
+
+  private def writeFully(channel: FileChannel, data: ByteBuffer, position: Long) =
+    while(data.hasRemaining) channel.write(data, position + data.position())
+  private def writeHeader(channel: FileChannel, project: Project) = {
+    val header = ByteBuffer.allocate(HeaderSize)
+    header.putInt(Magic).putInt(Version)
+    header.putLong(project.uuid.getMostSignificantBits).putLong(project.uuid.getLeastSignificantBits)
+    header.putLong(project.lastWriteTime)
+    header.flip()
+    writeFully(channel, header, 0)
+    HeaderSize
+  }
+
+  // Reads the records of a journal that applies to `project`, stopping at the first damaged one. Returns None if the
+  // journal is for some other version of the project file.
+  private def readRecords(channel: FileChannel, project: Project): Option[(Seq[JournalRecord], Long)] = {
+    val data = ByteBuffer.allocate(channel.size().toInt)
+    while(data.hasRemaining && channel.read(data, data.position()) >= 0) { }
+    data.flip()
+    if(data.remaining() < HeaderSize || data.getInt() != Magic || data.getInt() != Version ||
+       new UUID(data.getLong(), data.getLong()) != project.uuid || data.getLong() != project.lastWriteTime) None
+    else {
+      val records = Seq.newBuilder[JournalRecord]
+      var valid = data.position()
+      var done = false
+      while(!done && data.remaining() >= 4) {
+        val length = data.getInt()
+        if(length < 0 || data.remaining() < length.toLong + 4) done = true
+        else {
+          val record = new Array[Byte](length)
+          data.get(record)
+          val crc = new CRC32()
+          crc.update(record)
+          if(data.getInt() != crc.getValue.toInt) done = true
+          else {
+            records += JournalRecord.decode(ByteBuffer.wrap(record))
+            valid = data.position()
+          }
+        }
+      }
+      Some((records.result(), valid.toLong))
+    }
+  }
+
+  private def replay(project: Project, record: JournalRecord): Unit = record match {
+    case JournalRecord.CardCreated(card, time) =>
+      if(!project.cards.current.contains(card)) project.cards.create(card, _.createTime = time)
+    case JournalRecord.ViewCreated(view, time) =>
+      if(!project.views.current.contains(view)) project.views.create(view, _.info.createTime = time)
+    case JournalRecord.CardField(card, time, name, field) =>
+      for(data <- project.cards.current.get(card)) {
+        data.updateField(name, field)
+        data.modifyTime = time
+      }
+    case JournalRecord.ViewField(view, time, name, field) =>
+      for(data <- project.getView(view)) {
+        data.info.fields.getDataField(name).update(field)
+        data.info.modifyTime = time
+      }
+    case JournalRecord.ViewCardAdded(view, card) => project.getView(view).foreach(_.addCard(card))
+    case JournalRecord.ViewCardRemoved(view, card) => project.getView(view).foreach(_.removeCard(card))
+  }
+
+  // Opens the journal for the project file at `projectPath` and starts recording `project`'s edits to it. If `replay`
+  // is set, the edits already in a journal for this version of the file are applied to the project first. Otherwise,
+  // or if there is no such journal, it's started over.
+  //
+  // Must be called on the Lua thread.
+  def open(project: Project, projectPath: Path, replay: Boolean): ProjectJournal = {
+    project.ctx.assertLuaThread()
+    project.journal.foreach(_.close(delete = false))
+
+    val path = pathFor(projectPath)
+    val channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+    val length = (if(replay) readRecords(channel, project) else None) match {
+      case Some((records, length)) =>
+        project.batch { for(record <- records) this.replay(project, record) }
+        channel.truncate(length)
+        length
+      case None =>
+        channel.truncate(0)
+        writeHeader(channel, project).toLong
+    }
+    channel.force(false)
+
+    val journal = new ProjectJournal(project, path, channel, length)
+    project.journal = Some(journal)
+    journal
+  }
+}
@@ -22,7 +22,6 @@
 
 package moe.lymia.princess.core.cardmodel
 
-import moe.lymia.princess.VersionInfo
 import moe.lymia.princess.core.cardmodel.SerializeUtils._
 import moe.lymia.princess.core.state.GuiContext
 import moe.lymia.princess.util.IOUtils
@@ -31,6 +30,11 @@ import rx._
 
 import java.nio.file.{Files, Path}
 import java.util.UUID
+import java.util.zip.{ZipEntry, ZipFile}
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.jdk.CollectionConverters._
+import scala.util.Using
 
 trait SyntheticView extends CardView {
   override val isStatic: Boolean = true
@@ -38,32 +42,86 @@ trait SyntheticView extends CardView {
   override def removeCard(uuid: UUID): Unit = { } // TODO: Make UI aware of views with different remove semantics
 }
 
-final class AllCardsView(protected val project: Project) extends CardView with SyntheticView {
-  override def cardIdList: Rx[Set[UUID]] = Rx.unsafe { project.cards().keySet }
+// A synthetic view whose cards are added and removed as cards are created or referenced, rather than recomputed from
+// the whole project.
+trait IndexedSyntheticView extends SyntheticView with CardMembership {
+  private lazy val ids = Var(Set.empty[UUID]) // lazy val to fix initialization order issues
+  override def cardIdList: Rx[Set[UUID]] = ids
+
+  protected def indexAdd(uuid: UUID): Unit = if(!project.varBatch.now(ids).contains(uuid)) {
+    project.varBatch.update(ids, project.varBatch.now(ids) + uuid)
+    membershipChanged(uuid, true)
+  }
+  protected def indexRemove(uuid: UUID): Unit = if(project.varBatch.now(ids).contains(uuid)) {
+    project.varBatch.update(ids, project.varBatch.now(ids) - uuid)
+    membershipChanged(uuid, false)
+  }
+}
+
+final class AllCardsView(protected val project: Project) extends CardView with IndexedSyntheticView {
   override val name: Rx[String] = Rx.unsafe { "All Cards" } // TODO I18N
+
+  project.cards.addEntryListener((uuid, _, added) => if(added) indexAdd(uuid) else indexRemove(uuid))
 }
 
-final class DeletedCardsView(protected val project: Project) extends CardView with SyntheticView {
-  override def cardIdList: Rx[Set[UUID]] = Rx.unsafe { project.cards().filter(_._2.refCount == 0).keySet }
+final class DeletedCardsView(protected val project: Project) extends CardView with IndexedSyntheticView {
   override val name: Rx[String] = Rx.unsafe { "Deleted Cards" } // TODO I18N
+
+  project.cards.addEntryListener((uuid, card, added) =>
+    if(added) {
+      card.addRefCountListener(count =>
+        if(project.cards.current.get(uuid).exists(_ eq card)) {
+          if(count == 0) indexAdd(uuid) else indexRemove(uuid)
+        })
+      if(card.refCount == 0) indexAdd(uuid) else indexRemove(uuid)
+    } else indexRemove(uuid))
 }
 
 final class Project(val ctx: GuiContext, val gameId: String, val idData: GameIDData)
   extends JsonSerializable with DirSerializable with TrackModifyTime {
   var uuid: UUID = UUID.randomUUID()
+  // The writeTime of the project file this was last read from or written to.
+  var lastWriteTime: Long = 0
+
+  // Set by ProjectJournal while it's recording this project's edits.
+  @volatile private[cardmodel] var journal: Option[ProjectJournal] = None
+  private def record(r: => JournalRecord): Unit = journal.foreach(_.record(r))
+  private def recordViewChanges(id: UUID, view: CardView): Unit =
+    view.info.fields.addChangeListener(change =>
+      if(change.isModification)
+        record(JournalRecord.ViewField(id, System.currentTimeMillis(), change.name, change.newValue)))
+
+  // Updates made while a batch is open are published together when it's closed. See `batch`.
+  private[cardmodel] val varBatch = new VarBatch
 
   val cards = new UUIDMapVar(id => {
     ctx.assertLuaThread()
     val data = new CardData(this)
     data.addModifyListener(this)
+    // Changes made while the card is initialized are recorded along with its creation. See below.
+    data.fields.addChangeListener(change =>
+      if(change.isModification && !data.isSuppressingModifications && cards.current.get(id).exists(_ eq data))
+        record(JournalRecord.CardField(id, System.currentTimeMillis(), change.name, change.newValue)))
     data
-  })
+  }, varBatch)
+  // Cards are recorded once they're added, so the journal has the creation time and fields they were created with.
+  cards.addEntryListener((id, data, added) =>
+    if(added) {
+      record(JournalRecord.CardCreated(id, data.createTime))
+      for((name, field) <- data.fields.values if field != DataField.Nil)
+        record(JournalRecord.CardField(id, data.modifyTime, name, field))
+    })
   val views = new UUIDMapVar(id => {
     ctx.assertLuaThread()
     val data = new ListCardView(this)
     data.info.addModifyListener(this)
+    recordViewChanges(id, data)
+    data.addMembershipListener((card, added) =>
+      record(if(added) JournalRecord.ViewCardAdded(id, card) else JournalRecord.ViewCardRemoved(id, card)))
+    record(JournalRecord.ViewCreated(id, data.info.createTime))
     data
-  })
+  }, varBatch)
+  views.addEntryListener((_, view, added) => if(!added) view.detach())
 
   val allCardsView = new AllCardsView(this)
   val deletedCardsView = new DeletedCardsView(this)
@@ -72,32 +130,58 @@ final class Project(val ctx: GuiContext, val gameId: String, val idData: GameIDD
     StaticViewID.AllCards -> allCardsView,
     StaticViewID.DeletedCards -> deletedCardsView
   )
-  for(view <- staticViews.values) view.info.addModifyListener(this)
+  for((id, view) <- staticViews) {
+    view.info.addModifyListener(this)
+    recordViewChanges(id, view)
+  }
 
   val allViews: Rx[Map[UUID, CardView]] = Rx.unsafe { staticViews ++ views() }
+  // Finds a view, including the ones created in the current batch.
+  def getView(id: UUID): Option[CardView] = staticViews.get(id).orElse(views.current.get(id))
   val sources: Rx[Seq[CardView]] = Rx.unsafe { allCardsView +: views().values.toSeq.sortBy(_.info.createTime) }
 
+  // Runs `f` as a single transaction. The cards and views it creates, and the cards it adds to or removes from views,
+  // are published together when it returns, so everything that depends on them is only recomputed once.
+  //
+  // Must be called on the Lua thread.
+  def batch[T](f: => T): T = {
+    ctx.assertLuaThread()
+    varBatch(f)
+  }
+  // Creates cards from their serialized data, and adds them to `view` if it's given.
+  def createCards(data: Seq[JsObject], view: Option[CardView] = None): Seq[UUID] = batch {
+    for(json <- data) yield {
+      val (uuid, _) = cards.create(_.deserialize(json))
+      view.foreach(_.addCard(uuid))
+      uuid
+    }
+  }
+  // Adds or removes many cards from a view. Cards that are no longer in any view are moved to the deleted cards view.
+  def addCards(view: CardView, ids: Seq[UUID]): Unit = batch { ids.foreach(view.addCard) }
+  def removeCards(view: CardView, ids: Seq[UUID]): Unit = batch { ids.foreach(view.removeCard) }
+
+  // The file format version this project is written in. Projects keep the version they were read with, so one saved
+  // with Project.VER_MAJOR_JSON goes on being saved as separate JSON files, and only its changed cards are written.
+  var formatVersion: Int = Project.VER_MAJOR
+
   // Main serialization entry point
   override def writeTo(path: Path): Unit = {
     super.writeTo(path)
+    ctx.syncLuaExec(snapshot()).writeTo(path)
+  }
 
-    cards.writeTo(path.resolve("cards"))
-    views.writeTo(path.resolve("views"))
-    allCardsView.writeTo(path.resolve("views").resolve("all-cards"))
-    deletedCardsView.writeTo(path.resolve("views").resolve("deleted-cards"))
-
-    writeJson(path.resolve("metadata.json"), Json.obj(
-      "version"   -> Json.obj(
-        "major" -> Project.VER_MAJOR,
-        "minor" -> Project.VER_MINOR
-      ),
-      "gameId"    -> gameId,
-      "program"   -> Json.arr("PrincessEdit", VersionInfo.versionString),
-      "writeTime" -> System.currentTimeMillis(),
-      "uuid"      -> uuid
-    ))
+  // Copies the project for saving. The snapshot takes the cards' and views' dirty flags, and sets lastWriteTime to the
+  // time it will be written with, so it should always be written.
+  def snapshot(): ProjectSnapshot = {
+    ctx.assertLuaThread()
+    lastWriteTime = System.currentTimeMillis()
+    new ProjectSnapshot(gameId, uuid, formatVersion, lastWriteTime,
+                        cards.now.map { case (id, card) => id -> card.snapshot() },
+                        views.now.map { case (id, view) => id -> view.snapshot() },
+                        Map("all-cards" -> allCardsView.snapshot(), "deleted-cards" -> deletedCardsView.snapshot()))
   }
-  override def readFrom(path: Path): Unit = {
+  override def readFrom(path: Path): Unit = readFrom(path, PreloadedCards.readPath(path))
+  private[cardmodel] def readFrom(path: Path, preloaded: PreloadedCards): Unit = {
     ctx.assertLuaThread()
 
     super.readFrom(path)
@@ -108,21 +192,33 @@ final class Project(val ctx: GuiContext, val gameId: String, val idData: GameIDD
       sys.error(s"tried to load file for GameID '$fileGameId' in project for GameID '$gameId'")
 
     val version = (metadata \ "version" \ "major").as[Int]
-    if(version != Project.VER_MAJOR) sys.error(s"unknown file format version $version")
+    if(version != Project.VER_MAJOR && version != Project.VER_MAJOR_JSON)
+      sys.error(s"unknown file format version $version")
+    formatVersion = version
 
-    cards.readFrom(path.resolve("cards"))
-    views.readFrom(path.resolve("views"))
+    batch {
+      cards.readEntries(preloaded.index) { (id, card) =>
+        preloaded.entries(id) match {
+          case PreloadedCard.Unparsed(saved, createTime, modifyTime) => card.readLazily(saved, createTime, modifyTime)
+          case PreloadedCard.Parsed(json) => card.readFrom(json)
+        }
+      }
+      views.readFrom(path.resolve("views"))
+    }
     allCardsView.readFrom(path.resolve("views").resolve("all-cards"))
     deletedCardsView.readFrom(path.resolve("views").resolve("deleted-cards"))
 
     uuid = (metadata \ "uuid").as[UUID]
+    lastWriteTime = (metadata \ "writeTime").as[Long]
   }
 }
 
 case class ProjectMetadata(gameId: String, versionMajor: Int, versionMinor: Int, createdBy: String)
 object Project {
-  val VER_MAJOR = 1
+  val VER_MAJOR = 2
   val VER_MINOR = 0
+  // The last version that stores each card as a JSON file in cards/, rather than all of them in cards.bin.
+  val VER_MAJOR_JSON = 1
 
   private def openPath[T](path: Path)(callback: Path => T): T =
     if(Files.isDirectory(path)) callback(path)
@@ -142,15 +238,95 @@ object Project {
         (metadata \ "program").as[Seq[String]].mkString(" ")
       )
     })
-  def loadProject(ctx: GuiContext, gameID: String, idData: GameIDData, path: Path): Project =
+  // The cards are read and parsed in parallel first, so that the Lua thread only has to build the CardData objects.
+  def loadProject(ctx: GuiContext, gameID: String, idData: GameIDData, path: Path): Project = {
+    val cards = PreloadedCards.read(path)
     openPath(path) { x =>
-      val project = new Project(ctx, gameID, idData)
-      project.readFrom(x)
-      project
+      ctx.syncLuaExec {
+        val project = new Project(ctx, gameID, idData)
+        project.readFrom(x, cards)
+        project
+      }
     }
+  }
+}
+
+private[cardmodel] sealed trait PreloadedCard
+private[cardmodel] object PreloadedCard {
+  // Cards with their create and modify times known without parsing them, which are left for CardData to parse when
+  // they're first used.
+  final case class Unparsed(card: SavedCard, createTime: Long, modifyTime: Long) extends PreloadedCard
+  final case class Parsed(json: JsObject) extends PreloadedCard
+}
+
+// A project's cards, read and parsed off the Lua thread.
+private[cardmodel] final case class PreloadedCards(index: Seq[UUID], entries: Map[UUID, PreloadedCard])
+private[cardmodel] object PreloadedCards {
+  private implicit val executionContext: ExecutionContext = ExecutionContext.global
+
+  private def parallel[A, B](seq: Seq[A])(f: A => B): Seq[B] =
+    Await.result(Future.traverse(seq)(x => Future(f(x))), Duration.Inf)
+
+  // Reads the cards of the project file or directory at `path`. A zip file is read with one pass over its central
+  // directory, rather than looking up each card in a zip filesystem.
+  def read(path: Path): PreloadedCards =
+    if(Files.isDirectory(path)) readPath(path)
+    else Using.resource(new ZipFile(path.toFile)) { zip =>
+      val entries = zip.entries().asScala.filter(!_.isDirectory).map(x => x.getName.stripPrefix("/") -> x).toMap
+      def readEntry(entry: ZipEntry) = Using.resource(zip.getInputStream(entry))(_.readAllBytes())
+      entries.get(BinaryCardFormat.FileName) match {
+        case Some(entry) => fromBinary(readEntry(entry))
+        case None =>
+          val prefix = "cards/"
+          val cardEntries = entries.toSeq.collect {
+            case (name, entry) if name.startsWith(prefix) && !name.substring(prefix.length).contains('/') =>
+              name.substring(prefix.length) -> entry
+          }
+          fromFiles(parallel(cardEntries)(x => x._1 -> readEntry(x._2)).toMap)
+      }
+    }
+  // Reads the cards of an open project.
+  def readPath(path: Path): PreloadedCards = {
+    val binaryPath = path.resolve(BinaryCardFormat.FileName)
+    if(Files.exists(binaryPath)) fromBinary(IOUtils.readFileAsBytes(binaryPath))
+    else fromFiles(parallel(IOUtils.list(path.resolve("cards")).filter(Files.isRegularFile(_)))(x =>
+      x.getFileName.toString.stripSuffix("/") -> IOUtils.readFileAsBytes(x)
+    ).toMap)
+  }
+
+  private def fromBinary(data: Array[Byte]): PreloadedCards = {
+    val file = new BinaryCardFile(data)
+    val entries =
+      if(file.cards.length < ColumnStore.MinCards) file.cards.map { case (id, card) =>
+        id -> PreloadedCard.Unparsed(card, card.createTime, card.modifyTime)
+      } else {
+        // moved into columns, so the file's buffer isn't kept around
+        val store = new ColumnStore
+        file.cards.map { case (id, card) =>
+          val row = store.add(id, card.fields)
+          id -> PreloadedCard.Unparsed(new ColumnarSavedCard(store, row, card.createTime, card.modifyTime),
+                                       card.createTime, card.modifyTime)
+        }
+      }
+    PreloadedCards(file.cards.map(_._1), entries.toMap)
+  }
+  private def fromFiles(files: Map[String, Array[Byte]]): PreloadedCards = {
+    def getFile(name: String) = files.getOrElse(name, sys.error(s"cards/$name not found"))
+    val index = Json.parse(getFile("_index.json")).as[Seq[UUID]]
+    val metadata = files.get("_metadata.json").fold(Map.empty[String, Seq[Long]])(x =>
+      Json.parse(x).as[Map[String, Seq[Long]]])
+    val entries = parallel(index) { id =>
+      val data = getFile(s"$id.json")
+      id -> (metadata.get(id.toString) match {
+        case Some(Seq(createTime, modifyTime)) => PreloadedCard.Unparsed(JsonSavedCard(data), createTime, modifyTime)
+        case _ => PreloadedCard.Parsed(Json.parse(data).as[JsObject])
+      })
+    }
+    PreloadedCards(index, entries.toMap)
+  }
 }
 
 object StaticViewID {
   val AllCards: UUID = UUID.fromString("2d083912-441b-11e7-8b8b-e793e0991f26")
   val DeletedCards: UUID = UUID.fromString("7e676322-4615-11e7-b815-161899dad660")
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.core.cardmodel
+
+import moe.lymia.princess.VersionInfo
+import moe.lymia.princess.core.cardmodel.SerializeUtils._
+import moe.lymia.princess.util.IOUtils
+import play.api.libs.json._
+
+import java.nio.file.{Files, Path}
+import java.util.UUID
+
+private[cardmodel] final class CardSnapshot(val createTime: Long, val modifyTime: Long,
+                                            val content: Either[SavedCard, Map[String, DataField]], dirty: Boolean)
+  extends PathSerializable {
+
+  override val extension = ".json"
+  override def isDirty: Boolean = dirty
+
+  override def writeTo(path: Path): Unit = content match {
+    case Left(saved) => IOUtils.writeFile(path, saved.jsonBytes)
+    case Right(fields) => writeJson(path, SavedCard.json(fields, createTime, modifyTime))
+  }
+}
+
+private[cardmodel] final class ViewSnapshot(info: JsObject, cardIds: Option[Set[UUID]], dirty: Boolean)
+  extends PathSerializable {
+
+  override def isDirty: Boolean = dirty
+  override def writeTo(path: Path): Unit = {
+    Files.createDirectories(path)
+    writeJson(path.resolve("info.json"), info)
+    for(ids <- cardIds) writeJson(path.resolve("cards.json"), Json.toJson(ids))
+  }
+}
+
+// An immutable copy of a project, taken with Project.snapshot. Writing it doesn't touch the live project, so it can be
+// done on any thread while the project goes on being edited.
+final class ProjectSnapshot private[cardmodel] (gameId: String, uuid: UUID, formatVersion: Int, writeTime: Long,
+                                                cards: Map[UUID, CardSnapshot], views: Map[UUID, ViewSnapshot],
+                                                staticViews: Map[String, ViewSnapshot]) {
+  // Progress is reported as the percentage of cards and views written so far.
+  private final class Progress(callback: Int => Unit) {
+    private val total = cards.size + views.size + staticViews.size + 1
+    private var done = 0
+    def step(count: Int = 1): Unit = {
+      done += count
+      callback(done * 100 / total)
+    }
+  }
+
+  def writeTo(path: Path, progress: Int => Unit = _ => ()): Unit = {
+    val p = new Progress(progress)
+    Files.createDirectories(path)
+    writeCards(path, changesOnly = false, p)
+    writeMap(path.resolve("views"), views)(_.toString)
+    p.step(views.size)
+    for((name, view) <- staticViews) view.writeTo(path.resolve("views").resolve(name))
+    p.step(staticViews.size)
+    writeMetadata(path)
+    p.step()
+  }
+  // Updates a copy of the project that was last written to or read from `path`, only writing the cards and views that
+  // had changed since when the snapshot was taken. With a zip filesystem, the other entries are copied into the new
+  // archive unchanged.
+  def writeChangesTo(path: Path, progress: Int => Unit = _ => ()): Unit = {
+    val p = new Progress(progress)
+    writeCards(path, changesOnly = true, p)
+    writeChangedMap(path.resolve("views"), views)(_.toString)
+    p.step(views.size)
+    for((name, view) <- staticViews if view.isDirty) view.writeTo(path.resolve("views").resolve(name))
+    p.step(staticViews.size)
+    writeMetadata(path)
+    p.step()
+  }
+
+  // The binary layout is always written in full, as it's a single file, but cards that haven't been parsed are copied
+  // from the file they were read from rather than decoded and encoded again. Either way, the cards in the other layout
+  // are removed, in case the project was last saved with a different format version.
+  private def writeCards(path: Path, changesOnly: Boolean, p: Progress): Unit = {
+    val cardsPath = path.resolve("cards")
+    val binaryPath = path.resolve(BinaryCardFormat.FileName)
+    if(formatVersion == Project.VER_MAJOR_JSON) {
+      Files.deleteIfExists(binaryPath)
+      if(changesOnly) writeChangedMap(cardsPath, cards)(_.toString) else writeMap(cardsPath, cards)(_.toString)
+      // written alongside the cards so they can be loaded without parsing them. See CardData.readLazily.
+      writeJson(cardsPath.resolve("_metadata.json"), JsObject(cards.toSeq.map { case (id, card) =>
+        id.toString -> Json.arr(card.createTime, card.modifyTime)
+      }))
+    } else {
+      if(Files.exists(cardsPath)) IOUtils.deleteDirectory(cardsPath)
+      BinaryCardFormat.write(binaryPath, cards.toSeq.map { case (id, card) =>
+        BinaryCardEntry(id, card.createTime, card.modifyTime, card.content)
+      })
+    }
+    p.step(cards.size)
+  }
+  private def writeMetadata(path: Path): Unit =
+    writeJson(path.resolve("metadata.json"), Json.obj(
+      "version"   -> Json.obj(
+        "major" -> formatVersion,
+        "minor" -> Project.VER_MINOR
+      ),
+      "gameId"    -> gameId,
+      "program"   -> Json.arr("PrincessEdit", VersionInfo.versionString),
+      "writeTime" -> writeTime,
+      "uuid"      -> uuid
+    ))
+}
@@ -32,6 +32,8 @@ import scala.collection.mutable
 
 trait PathSerializable {
   val extension = ""
+  // Whether this has changed since it was last written by writeTo or read by readFrom.
+  def isDirty: Boolean = true
   def writeTo(path: Path): Unit = { }
   def readFrom(path: Path): Unit = { }
 }
@@ -71,10 +73,18 @@ trait TrackModifyTime extends JsonSerializable with ModifyListener {
   private var listeners = new mutable.ArrayBuffer[ModifyListener]()
   def addModifyListener(listener: ModifyListener) = listeners += listener
   def removeModifyListener(listener: ModifyListener) = listeners = listeners.filter(_ ne listener)
-  def modified() = {
+  private var suppressModified = false
+  def modified() = if(!suppressModified) {
     listeners.foreach(_.onModified())
     modifyTime = System.currentTimeMillis()
   }
+  // Runs `f` without treating the changes it makes as modifications. Used to load data that is already saved.
+  private[cardmodel] def isSuppressingModifications = suppressModified
+  protected def withoutModifications[T](f: => T): T = {
+    val old = suppressModified
+    suppressModified = true
+    try f finally suppressModified = old
+  }
 
   override def onModified(): Unit = modified()
 
@@ -86,6 +96,32 @@ trait TrackModifyTime extends JsonSerializable with ModifyListener {
   }
 }
 
+// Dirty tracking for entries that are saved separately, so incremental saves can skip the unchanged ones. Entries
+// start out dirty, since they have never been written.
+trait TrackDirty extends TrackModifyTime with PathSerializable {
+  private var dirty = true
+  addModifyListener(() => dirty = true)
+
+  override def isDirty: Boolean = dirty
+  override def writeTo(path: Path): Unit = {
+    // cleared before serializing, so that a change made during a save is still written by the next one
+    dirty = false
+    super.writeTo(path)
+  }
+  override def readFrom(path: Path): Unit = {
+    super.readFrom(path)
+    dirty = false
+  }
+  // For entries that are read some other way than readFrom.
+  protected def markClean(): Unit = dirty = false
+  // For entries that are written some other way than writeTo. Returns whether this was dirty, and clears the flag.
+  private[cardmodel] def takeDirty(): Boolean = {
+    val wasDirty = dirty
+    dirty = false
+    wasDirty
+  }
+}
+
 trait HasDataStore extends JsonSerializable {
   protected val project: Project
 
@@ -98,16 +134,66 @@ trait HasDataStore extends JsonSerializable {
   }
 }
 
-final class UUIDMapVar[T <: PathSerializable](newFn: UUID => T)
+// Defers updates to Vars while a batch is open, and applies them all with a single Var.set once it's closed, so that
+// everything downstream of them is only recomputed once. Only used on the Lua thread.
+final class VarBatch {
+  private val pending = new mutable.LinkedHashMap[Var[_], Any]()
+  private var depth = 0
+
+  def isOpen: Boolean = depth > 0
+  // The value of `v`, including updates made in the current batch.
+  def now[T](v: Var[T]): T = pending.getOrElse(v, v.now).asInstanceOf[T]
+  def update[T](v: Var[T], value: T): Unit = if(isOpen) pending.put(v, value) else v.update(value)
+
+  def apply[T](f: => T): T = {
+    depth += 1
+    try f finally {
+      depth -= 1
+      if(depth == 0) {
+        val assignments = pending.toSeq.map { case (v, value) => assignment(v, value) }
+        pending.clear()
+        if(assignments.nonEmpty) Var.set(assignments : _*)
+      }
+    }
+  }
+  private def assignment[T](v: Var[T], value: Any): Var.Assignment[T] = (v, value.asInstanceOf[T])
+}
+
+final class UUIDMapVar[T <: PathSerializable](newFn: UUID => T, batch: VarBatch)
   extends Var.Base[Map[UUID, T]](Map.empty) with PathSerializable {
 
-  def create(): (UUID, T) = {
+  def create(): (UUID, T) = create(_ => ())
+  def create(init: T => Unit): (UUID, T) = {
     val uuid = UUID.randomUUID()
-    val tuple = uuid -> newFn(uuid)
-    update(now + tuple)
-    tuple
+    uuid -> create(uuid, init)
+  }
+  def create(uuid: UUID): T = create(uuid, _ => ())
+  // `init` is run on the new entry before it's added to the map, so the entry listeners only ever see it once it's
+  // fully set up.
+  def create(uuid: UUID, init: T => Unit): T = {
+    val entry = newFn(uuid)
+    init(entry)
+    val old = current.get(uuid)
+    batch.update(this, current + (uuid -> entry))
+    for(oldEntry <- old) entryListeners.foreach(f => f(uuid, oldEntry, false))
+    entryListeners.foreach(f => f(uuid, entry, true))
+    entry
   }
   def get(uuid: UUID)(implicit ctx: Ctx.Data) = apply().get(uuid)
+  // The entries, including the ones created in the current batch.
+  def current: Map[UUID, T] = batch.now(this)
+
+  // Called with an entry's UUID, the entry, and whether it was added or removed.
+  type EntryListener = (UUID, T, Boolean) => Unit
+  private val entryListeners = new mutable.ArrayBuffer[EntryListener]()
+  def addEntryListener(l: EntryListener) = entryListeners += l
+  def removeEntryListener(l: EntryListener) = entryListeners -= l
+  private def updateEntries(map: Map[UUID, T]): Unit = {
+    val old = current
+    batch.update(this, map)
+    for((id, entry) <- old if !map.get(id).exists(_ eq entry)) entryListeners.foreach(f => f(id, entry, false))
+    for((id, entry) <- map if !old.get(id).exists(_ eq entry)) entryListeners.foreach(f => f(id, entry, true))
+  }
 
   override def writeTo(path: Path): Unit = {
     super.writeTo(path)
@@ -115,19 +201,34 @@ final class UUIDMapVar[T <: PathSerializable](newFn: UUID => T)
   }
   override def readFrom(path: Path): Unit = {
     super.readFrom(path)
-    update(SerializeUtils.readMap(path)(newFn, (_ : UUID).toString))
+    updateEntries(SerializeUtils.readMap(path)(newFn, (_ : UUID).toString))
   }
+  // Replaces the map with new entries for `ids`, using a custom function to read each one.
+  def readEntries(ids: Seq[UUID])(read: (UUID, T) => Unit): Unit =
+    updateEntries(ids.map(id => id -> {
+      val entry = newFn(id)
+      read(id, entry)
+      entry
+    }).toMap)
 }
 
 private[cardmodel] trait RefCount {
   private var refCount0 = 0
   private[cardmodel] def refCount = refCount0
-  private[cardmodel] def ref()    = refCount0 = refCount + 1
-  private[cardmodel] def unref()  = refCount0 = refCount - 1
+  private[cardmodel] def ref()    = setRefCount(refCount + 1)
+  private[cardmodel] def unref()  = setRefCount(refCount - 1)
+
+  // Called with the new reference count whenever it changes.
+  private lazy val refCountListeners = new mutable.ArrayBuffer[Int => Unit]()
+  private[cardmodel] def addRefCountListener(l: Int => Unit) = refCountListeners += l
+  private def setRefCount(count: Int) = {
+    refCount0 = count
+    refCountListeners.foreach(f => f(count))
+  }
 }
 
 trait DataStoreModifyListener { this: HasDataStore with TrackModifyTime =>
-  fields.addChangeListener((_, _) => modified())
+  fields.addChangeListener(change => if(change.isModification) modified())
 }
 trait HasModifyTimeDataStore extends HasDataStore with TrackModifyTime with DataStoreModifyListener
 
@@ -140,6 +241,25 @@ object SerializeUtils {
     writeJson(path.resolve("_index.json"), Json.toJson(map.keys.map(fileName)))
     for((id, entry) <- map) entry.writeTo(path.resolve(s"${fileName(id)}${entry.extension}"))
   }
+  // Updates a map written by writeMap in place: entries removed from the map since are deleted, and only new or dirty
+  // entries are written. Other files in the directory are left alone.
+  def writeChangedMap[K : Writes, V <: PathSerializable](path: Path, map: Map[K, V])(fileName: K => String) = {
+    val indexPath = path.resolve("_index.json")
+    val oldNames = if(Files.exists(indexPath)) readJson(indexPath).as[Set[String]] else Set.empty[String]
+    val names = map.keySet.map(fileName)
+    val removed = oldNames -- names
+    if(removed.nonEmpty) for(file <- IOUtils.list(path)) {
+      val name = file.getFileName.toString.stripSuffix("/")
+      if(removed.contains(name.takeWhile(_ != '.'))) IOUtils.deleteDirectory(file)
+    }
+
+    Files.createDirectories(path)
+    writeJson(indexPath, Json.toJson(map.keys.map(fileName)))
+    for((id, entry) <- map) {
+      val entryPath = path.resolve(s"${fileName(id)}${entry.extension}")
+      if(entry.isDirty || !Files.exists(entryPath)) entry.writeTo(entryPath)
+    }
+  }
 
   def readJson(path: Path) = Json.parse(IOUtils.readFileAsString(path))
   def readMap[K: Reads, V <: PathSerializable](path: Path)(newValue: K => V, fileName: K => String) = {
@@ -27,6 +27,8 @@ import rx._
 
 import java.nio.file.Path
 import java.util.UUID
+import scala.collection.immutable.TreeMap
+import scala.collection.{immutable, mutable}
 
 final class SlotData(protected val project: Project) extends JsonPathSerializable with HasModifyTimeDataStore {
   val cardRef: Var[Option[UUID]] = Var[Option[UUID]](None)
@@ -38,21 +40,79 @@ final class SlotData(protected val project: Project) extends JsonPathSerializabl
   }
 }
 
-final class ViewInfo(protected val project: Project) extends JsonPathSerializable with HasModifyTimeDataStore {
+final class ViewInfo(protected val project: Project)
+  extends JsonPathSerializable with HasModifyTimeDataStore with TrackDirty {
   val root: DataRoot = project.ctx.syncLuaExec { project.idData.viewRoot.createRoot(fields, Seq()) }
   val name: Rx[String] = Rx.unsafe { project.idData.viewData.computeName(root.luaData()) }
 }
 
-trait CardView extends PathSerializable {
+trait CardView extends PathSerializable with CardMembership {
   protected val project: Project
   val info: ViewInfo = new ViewInfo(project)
   val name: Rx[String] = info.name
 
   def cardIdList: Rx[Set[UUID]]
-  val fullCardList: Rx[Seq[FullCardData]] = Rx.unsafe { // TODO: See if I can do better than Rx.unsafe
-    cardIdList().toSeq.flatMap(x => getFullCard(x)).sortBy(_.cardData.createTime)
+
+  // The cards in this view, sorted by creation time. This is maintained incrementally from the view's membership
+  // changes and the project's card entries: a card's FullCardData is kept for as long as it stays in the view, and each
+  // card that is added or removed costs O(log n), as the cards are kept in a tree.
+  //
+  // Each card is keyed by its creation time when it was added, as that may be changed afterwards by deserialize.
+  private val fullCards = new mutable.HashMap[UUID, (CardView.Key, FullCardData)]()
+  private val missingCards = new mutable.HashSet[UUID]() // ids in the view that don't have a card yet
+  private var fullCardTree = TreeMap.empty[CardView.Key, FullCardData]
+  private val fullCardList0 = Var[Seq[FullCardData]](Vector.empty)
+  val fullCardList: Rx[Seq[FullCardData]] = fullCardList0
+
+  // Called on the Lua thread with the changes made to fullCardList, in the order they were applied. The changes are
+  // made as soon as cards are added or removed, so they apply to currentCardList rather than fullCardList, which is
+  // only updated once the batch they were made in is closed.
+  type CardListListener = Seq[CardListChange] => Unit
+  private val cardListListeners = new mutable.ArrayBuffer[CardListListener]()
+  def addCardListListener(l: CardListListener) = cardListListeners += l
+  def removeCardListListener(l: CardListListener) = cardListListeners -= l
+  // fullCardList, including the changes made in the current batch. Must be called on the Lua thread.
+  def currentCardList: Seq[FullCardData] = project.varBatch.now(fullCardList0)
+
+  private def fullCardListChanged(change: CardListChange): Unit = {
+    project.varBatch.update(fullCardList0, new CardView.SortedCards(fullCardTree))
+    cardListListeners.foreach(f => f(Seq(change)))
+  }
+  private def insertFullCard(uuid: UUID, cardData: CardData): Unit = {
+    val key = CardView.Key(cardData.createTime, uuid)
+    val card = FullCardData(uuid, project, cardData, info, Var[Option[Any]](None))(Ctx.Owner.Unsafe)
+    fullCards.put(uuid, (key, card))
+    fullCardTree = fullCardTree.updated(key, card)
+    fullCardListChanged(CardListChange.Added(fullCardTree.rangeUntil(key).size, card))
+  }
+  private def removeFullCard(uuid: UUID): Unit = for((key, card) <- fullCards.remove(uuid)) {
+    val index = fullCardTree.rangeUntil(key).size
+    fullCardTree = fullCardTree.removed(key)
+    card.kill()
+    fullCardListChanged(CardListChange.Removed(index, card))
   }
 
+  addMembershipListener((uuid, added) =>
+    if(added) project.cards.current.get(uuid) match {
+      case Some(cardData) => if(!fullCards.contains(uuid)) insertFullCard(uuid, cardData)
+      case None => missingCards.add(uuid)
+    } else {
+      missingCards.remove(uuid)
+      removeFullCard(uuid)
+    })
+  // Cards whose CardData is replaced (e.g. by reloading the project) are removed and added again. The old entry is
+  // always removed before the new one is added.
+  private val cardEntryListener: (UUID, CardData, Boolean) => Unit = (uuid, cardData, added) =>
+    if(added) {
+      if(missingCards.remove(uuid)) insertFullCard(uuid, cardData)
+    } else if(fullCards.get(uuid).exists(_._2.cardData eq cardData)) {
+      removeFullCard(uuid)
+      missingCards.add(uuid)
+    }
+  project.cards.addEntryListener(cardEntryListener)
+  // Stops following the project's cards, once the view has been removed from it.
+  private[cardmodel] def detach(): Unit = project.cards.removeEntryListener(cardEntryListener)
+
   val isStatic: Boolean = false
   def addCard(uuid: UUID): Unit
   def removeCard(uuid: UUID): Unit
@@ -62,6 +122,8 @@ trait CardView extends PathSerializable {
     card.map(x => FullCardData(uuid, project, x, info, Rx { None }))
   }
 
+  override def isDirty: Boolean = info.isDirty
+  private[cardmodel] def snapshot(): ViewSnapshot = new ViewSnapshot(info.serialize, None, info.takeDirty())
   override def writeTo(path: Path): Unit = {
     super.writeTo(path)
     info.writeTo(path.resolve("info.json"))
@@ -72,32 +134,102 @@ trait CardView extends PathSerializable {
   }
 }
 
-trait CardList extends DirSerializable {
+object CardView {
+  private[cardmodel] final case class Key(createTime: Long, uuid: UUID)
+  private[cardmodel] object Key {
+    implicit val ordering: Ordering[Key] = new Ordering[Key] {
+      override def compare(x: Key, y: Key): Int = java.lang.Long.compare(x.createTime, y.createTime) match {
+        case 0 => x.uuid.compareTo(y.uuid)
+        case c => c
+      }
+    }
+  }
+
+  // A view of the cards in a tree as a sequence. Indexing only takes O(log n), as the tree nodes know their sizes, but
+  // it's still much slower than iterating, so this isn't an IndexedSeq: the collection operations it inherits all go
+  // through `iterator`. Slicing is done on the tree itself.
+  private final class SortedCards(tree: TreeMap[Key, FullCardData]) extends immutable.AbstractSeq[FullCardData] {
+    override def length: Int = tree.size
+    override def knownSize: Int = tree.size
+    override def isEmpty: Boolean = tree.isEmpty
+    override def apply(i: Int): FullCardData =
+      if(i < 0 || i >= length) throw new IndexOutOfBoundsException(i.toString) else tree.drop(i).head._2
+    override def iterator: Iterator[FullCardData] = tree.valuesIterator
+
+    override def head: FullCardData = tree.head._2
+    override def last: FullCardData = tree.last._2
+    override def slice(from: Int, until: Int): immutable.Seq[FullCardData] = new SortedCards(tree.slice(from, until))
+    override def take(n: Int): immutable.Seq[FullCardData] = new SortedCards(tree.take(n))
+    override def drop(n: Int): immutable.Seq[FullCardData] = new SortedCards(tree.drop(n))
+  }
+}
+
+sealed trait CardListChange {
+  val index: Int
+  val card: FullCardData
+}
+object CardListChange {
+  final case class Added(index: Int, card: FullCardData) extends CardListChange
+  final case class Removed(index: Int, card: FullCardData) extends CardListChange
+}
+
+trait CardMembership {
+  // Called with the card's UUID, and whether it was added or removed.
+  type MembershipListener = (UUID, Boolean) => Unit
+  private lazy val membershipListeners = new mutable.ArrayBuffer[MembershipListener]()
+  def addMembershipListener(l: MembershipListener) = membershipListeners += l
+  protected def membershipChanged(uuid: UUID, added: Boolean): Unit = membershipListeners.foreach(f => f(uuid, added))
+}
+
+trait CardList extends DirSerializable with CardMembership {
   protected val project: Project
   lazy val idList: Var[Set[UUID]] = Var(Set.empty[UUID]) // lazy val to fix initialization order issues
+  private var idListDirty = true
 
-  def addCard(uuid: UUID): Unit = if(!idList.now.contains(uuid)) {
-    project.cards.now.get(uuid).foreach(_.ref())
-    idList.update(idList.now + uuid)
+  def addCard(uuid: UUID): Unit = if(!project.varBatch.now(idList).contains(uuid)) {
+    project.cards.current.get(uuid).foreach(_.ref())
+    project.varBatch.update(idList, project.varBatch.now(idList) + uuid)
+    idListDirty = true
+    membershipChanged(uuid, true)
   }
-  def removeCard(uuid: UUID): Unit = if(idList.now.contains(uuid)) {
-    project.cards.now.get(uuid).foreach(_.unref())
-    idList.update(idList.now - uuid)
+  def removeCard(uuid: UUID): Unit = if(project.varBatch.now(idList).contains(uuid)) {
+    project.cards.current.get(uuid).foreach(_.unref())
+    project.varBatch.update(idList, project.varBatch.now(idList) - uuid)
+    idListDirty = true
+    membershipChanged(uuid, false)
   }
 
+  override def isDirty: Boolean = super.isDirty || idListDirty
+  private[cardmodel] def takeIdListDirty(): Boolean = {
+    val wasDirty = idListDirty
+    idListDirty = false
+    wasDirty
+  }
   override def writeTo(path: Path): Unit = {
+    idListDirty = false
     super.writeTo(path)
     SerializeUtils.writeJson(path.resolve("cards.json"), Json.toJson(idList.now))
   }
   override def readFrom(path: Path): Unit = {
     super.readFrom(path)
-    for(uuid <- idList.now) removeCard(uuid)
-    idList.update(SerializeUtils.readJson(path.resolve("cards.json")).as[Set[UUID]])
-    for(uuid <- Json.fromJson[Set[UUID]](SerializeUtils.readJson(path.resolve("cards.json"))).get) addCard(uuid)
+    // Updates idList once rather than per card, so that large views are cheap to load.
+    val oldIds = project.varBatch.now(idList)
+    val newIds = Json.fromJson[Set[UUID]](SerializeUtils.readJson(path.resolve("cards.json"))).get
+    for(uuid <- oldIds) project.cards.current.get(uuid).foreach(_.unref())
+    for(uuid <- newIds) project.cards.current.get(uuid).foreach(_.ref())
+    project.varBatch.update(idList, newIds)
+    for(uuid <- oldIds -- newIds) membershipChanged(uuid, false)
+    for(uuid <- newIds -- oldIds) membershipChanged(uuid, true)
+    idListDirty = false
   }
 }
 
 final class ListCardView(protected val project: Project) extends CardView with DirSerializable with CardList {
   val slots: Var[Seq[SlotData]] = Var(Seq.empty[SlotData])
   override def cardIdList: Rx[Set[UUID]] = idList
+
+  override private[cardmodel] def snapshot(): ViewSnapshot = {
+    val infoDirty = info.takeDirty()
+    new ViewSnapshot(info.serialize, Some(idList.now), takeIdListDirty() || infoDirty)
+  }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.core.gamedata
+
+import moe.lymia.lua._
+import moe.lymia.princess.util.IOUtils
+import org.apache.commons.codec.digest.DigestUtils
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, IOException}
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.util.concurrent.TimeUnit
+
+// Persistent cache of compiled Lua chunks, so loading a game doesn't have to parse every predef and export again.
+// Entries are keyed by a hash of the chunk name and source, and hold the chunk as dumped by Lua.dump, behind a header
+// that repeats the hash. Anything that doesn't match, or that the loader rejects, is discarded and the source is
+// parsed instead.
+final class LuaChunkCache(directory: Path) {
+  Files.createDirectories(directory)
+  locally {
+    // the last modified time of each entry is bumped whenever it is read, so entries for old versions of packages
+    // eventually expire
+    val expiry = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(LuaChunkCache.ExpiryDays)
+    for (file <- IOUtils.list(directory)) {
+      val name = file.getFileName.toString
+      if (name.endsWith(".tmp") ||
+          (name.endsWith(LuaChunkCache.Extension) && Files.getLastModifiedTime(file).toMillis < expiry))
+        tryDelete(file)
+    }
+  }
+
+  private def key(source: Array[Byte], chunkname: String) = {
+    val digest = DigestUtils.getSha256Digest
+    digest.update(s"${LuaChunkCache.Version}:$chunkname:".getBytes(StandardCharsets.UTF_8))
+    digest.digest(source)
+  }
+  private def pathFor(key: Array[Byte]) = directory.resolve(s"${DigestUtils.sha256Hex(key)}${LuaChunkCache.Extension}")
+
+  private def tryDelete(path: Path): Unit =
+    try Files.deleteIfExists(path) catch {
+      case _: IOException => // it will be cleaned up on the next startup
+    }
+
+  private def get(L: LuaState, key: Array[Byte], chunkname: String): Option[LuaClosure] = {
+    val path = pathFor(key)
+    if (!Files.exists(path)) None
+    else try {
+      val buffer = ByteBuffer.wrap(IOUtils.readFileAsBytes(path))
+      def corrupted = new IOException(s"corrupted Lua chunk cache entry for $chunkname")
+      if (buffer.remaining() < LuaChunkCache.HeaderSize || buffer.getInt() != LuaChunkCache.Magic ||
+          buffer.getInt() != LuaChunkCache.Version) throw corrupted
+      val storedKey = new Array[Byte](key.length)
+      buffer.get(storedKey)
+      if (!java.util.Arrays.equals(storedKey, key)) throw corrupted
+      val chunk = L.load(new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()), chunkname)
+        .fold(identity, e => throw new IOException(e))
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()))
+      Some(chunk)
+    } catch {
+      case _: IOException =>
+        tryDelete(path)
+        None
+    }
+  }
+
+  private def put(L: LuaState, key: Array[Byte], chunk: LuaClosure): Unit = try {
+    val out = new ByteArrayOutputStream()
+    val header = ByteBuffer.allocate(LuaChunkCache.HeaderSize)
+    header.putInt(LuaChunkCache.Magic).putInt(LuaChunkCache.Version).put(key)
+    out.write(header.array())
+    L.dump(chunk, out)
+
+    val path = pathFor(key)
+    val temp = Files.createTempFile(directory, path.getFileName.toString, ".tmp")
+    try {
+      IOUtils.writeFile(temp, out.toByteArray)
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally {
+      tryDelete(temp)
+    }
+  } catch {
+    case e: IOException => e.printStackTrace() // the cache is best effort, so just carry on without it
+  }
+
+  // Loads a chunk like LuaState.loadString, going through the cache.
+  def load(L: LuaState, source: Array[Byte], chunkname: String): Either[LuaClosure, String] = {
+    val k = key(source, chunkname)
+    get(L, k, chunkname) match {
+      case Some(chunk) => Left(chunk)
+      case None =>
+        val result = L.loadString(new String(source, StandardCharsets.UTF_8), chunkname)
+        result match {
+          case Left(chunk) => put(L, k, chunk)
+          case Right(_)    => // the error is reported by the caller
+        }
+        result
+    }
+  }
+}
+object LuaChunkCache {
+  private val Magic = 0x5045434c // "PECL"
+  private val Version = 1 // bump when the code generated by the Lua compiler changes
+  private val HeaderSize = 8 + 32
+  private val Extension = ".luac"
+  private val ExpiryDays = 30
+}
@@ -24,6 +24,7 @@ package moe.lymia.princess.core.gamedata
 
 import moe.lymia.lua.LuaObject
 import moe.lymia.princess.core.EditorException
+import moe.lymia.princess.core.state.Settings
 import moe.lymia.princess.util.IOUtils
 import moe.lymia.princess.{DefaultLogger, Environment, Logger}
 import toml.Toml
@@ -55,9 +56,22 @@ object GameId {
   }
 }
 
-final class GameData(packages: PackageList, val logger: Logger = DefaultLogger, modules: Seq[LuaModule] = Seq()) {
+final class GameData private (packages: PackageList, val logger: Logger, modules: Seq[LuaModule],
+                              chunkCache: Option[LuaChunkCache], snapshot: Option[LuaContext.Snapshot]) {
+  def this(packages: PackageList, logger: Logger = DefaultLogger, modules: Seq[LuaModule] = Seq(),
+           chunkCache: Option[LuaChunkCache] = None) =
+    this(packages, logger, modules, chunkCache, None)
+
   val gameId: String = packages.gameId
-  lazy val lua = new LuaContext(packages, logger.bind("LuaContext"), modules)
+  lazy val lua: LuaContext = snapshot match {
+    case Some(s) => s.instantiate()
+    case None    => new LuaContext(packages, logger.bind("LuaContext"), modules, chunkCache)
+  }
+
+  // Returns a copy of this game data with its own Lua context, initialized the same way as this one's is now. It must
+  // be called on the thread that owns this game's Lua context, but the copy's context is only created when it is
+  // first used, on whichever thread that is.
+  def fork(): GameData = new GameData(packages, logger, modules, chunkCache, Some(lua.snapshot()))
 
   def getExportKeys: Set[String] = packages.getExportKeys
   def getExports(key: String): Seq[Export] = packages.getExports(key)
@@ -84,7 +98,8 @@ final class GameData(packages: PackageList, val logger: Logger = DefaultLogger,
     getEntryPoint(export).getOrElse(throw EditorException(s"GameID '$gameId' has no entry point of type '$export'"))
 }
 
-final class GameDataLoader(packages: Option[Path], systemPackages: Seq[Path] = Seq(), logger: Logger = DefaultLogger) {
+final class GameDataLoader(packages: Option[Path], systemPackages: Seq[Path] = Seq(), logger: Logger = DefaultLogger,
+                           chunkCache: Option[LuaChunkCache] = None) {
   // TODO: Encapsulate this better.
 
   val resolver: PackageResolver = PackageResolver.loadPackageDirectory(packages, systemPackages: _*)
@@ -95,13 +110,14 @@ final class GameDataLoader(packages: Option[Path], systemPackages: Seq[Path] = S
   val gameIdI18N: MarkedI18NSource = new I18NLoader(gameIdManager).i18n.user
 
   def loadGameData(gameId: String, logger: Logger = logger, modules: Seq[LuaModule] = Seq()): GameData =
-    new GameData(resolver.loadGameId(gameId), logger, modules)
+    new GameData(resolver.loadGameId(gameId), logger, modules, chunkCache)
 }
 object GameDataLoader {
   private def rootPath = Environment.rootDirectory
   private def corePkgPath = Environment.libDirectory.resolve("core.pedit-pkg")
 
-  lazy val default = new GameDataLoader(Some(rootPath.resolve("packages")), Seq(corePkgPath))
+  lazy val default = new GameDataLoader(Some(rootPath.resolve("packages")), Seq(corePkgPath),
+                                       chunkCache = Some(new LuaChunkCache(Settings.luaCacheDirectory)))
   lazy val systemI18N: I18N = {
     val id = default.loadGameData("_princess")
     new I18NLoader(id).i18n
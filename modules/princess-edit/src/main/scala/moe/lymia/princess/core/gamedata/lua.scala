@@ -25,8 +25,9 @@ package moe.lymia.princess.core.gamedata
 import moe.lymia.lua._
 import moe.lymia.princess.core.EditorException
 import moe.lymia.princess.util._
-import moe.lymia.princess.{LogLevel, Logger}
+import moe.lymia.princess.{Environment, LogLevel, Logger}
 
+import java.nio.charset.StandardCharsets
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 
@@ -96,22 +97,34 @@ private case object CoreModule extends LuaModule {
   override def getLibraries(ctx: LuaContext) = Seq(CoreLib(ctx))
 }
 
-final class LuaContext(val packages: PackageList, val logger: Logger, modules: Seq[LuaModule]) {
-  val L = LuaState.makeSafeContext()
+final class LuaContext(val packages: PackageList, val logger: Logger, modules: Seq[LuaModule],
+                       chunkCache: Option[LuaChunkCache] = None) {
+  val L = LuaState.makeSafeContext(compileHotFunctions = Environment.compileLuaFunctions)
 
   private val systemTable = L.newTable()
   private val loadedModules = new mutable.HashSet[String]
   private var isClean = true
 
-  private def loadLuaPredef(path: String) = EditorException.context(s"loading Lua predef $path") {
-    logger.trace(s" - Loading predef '$path'")
-
-    val fullPath = packages.forceResolve(path)
+  // Modules and exports in the order they were loaded, for snapshot.
+  private val moduleLog = new mutable.ArrayBuffer[LuaModule]
+  private val exportLog = new mutable.ArrayBuffer[String]
 
-    val chunk = L.loadString(IOUtils.readFileAsString(fullPath), s"@$path") match {
+  private def loadChunk(L: LuaState, path: String) = {
+    val source = IOUtils.readFileAsBytes(packages.forceResolve(path))
+    val result = chunkCache match {
+      case Some(cache) => cache.load(L, source, s"@$path")
+      case None        => L.loadString(new String(source, StandardCharsets.UTF_8), s"@$path")
+    }
+    result match {
       case Left (c) => c
       case Right(e) => throw EditorException(e)
     }
+  }
+
+  private def loadLuaPredef(path: String) = EditorException.context(s"loading Lua predef $path") {
+    logger.trace(s" - Loading predef '$path'")
+
+    val chunk = loadChunk(L, path)
     L.pcall(chunk, 0, systemTable).foreach(e => throw EditorException(e))
   }
   private def loadPredefs(exportType: String) =
@@ -132,6 +145,7 @@ final class LuaContext(val packages: PackageList, val logger: Logger, modules: S
 
     loadPredefs(StaticExportIds.Predef(mod.moduleName))
     loadedModules.add(mod.moduleName)
+    if(mod ne CoreModule) moduleLog += mod
   }
   def isModuleLoaded(mod: LuaModule) = loadedModules.contains(mod.moduleName)
   loadModule(CoreModule)
@@ -149,7 +163,7 @@ final class LuaContext(val packages: PackageList, val logger: Logger, modules: S
 
   private def copyTable(L: LuaState, path: Seq[String], tbl: LuaTable, ignore: String*): TableWrapper = {
     val map = new mutable.HashMap[String, Any]
-    for(k <- tbl.keySet().asScala) {
+    for(k <- tbl.keys().asScala) {
       k match {
         case s: String if !ignore.contains(s) =>
           L.push(L.rawGet(tbl, s))
@@ -179,36 +193,32 @@ final class LuaContext(val packages: PackageList, val logger: Logger, modules: S
 
     logger.trace(s"Loading export '$path'")
 
-    val fullPath = packages.forceResolve(path)
-
     val L = this.L.newThread()
 
     val globals = L.getRegistry(LuaContext.globalsWrapper, copyTable(L, Seq(), L.getGlobals, "_G", "package").toLua(L))
 
-    val overwrittenKeys = new mutable.WeakHashMap[Any, Unit]
     val exports = L.newTable()
 
+    // Reads from the environment go to a plain table holding the global copies, shadowed by anything the export
+    // assigns, rather than through a function __index, so the interpreter's inline caches can serve them.
+    val scope = L.newTable()
+    for((k, v) <- globals.fromLua[TableWrapper](L).contents) L.rawSet(scope, k, v)
+
     val _G = L.newTable()
+    L.rawSet(scope, "_G", _G)
     val mt = L.newTable()
     L.setMetatable(_G, mt)
 
     L.register(mt , "__tostring" , (tbl: Any) => s"environment for $path")
     L.rawSet  (mt , "__metatable", s"export environment metatable")
-    L.register(mt, "__index"     , (L: LuaState, tbl: Any, k: Any) => {
-      if(overwrittenKeys.contains(k)) LuaRet(L.rawGet(exports, k))
-      else if(k == "_G")              LuaRet(_G)
-      else                            LuaRet(L.getTable(globals, k))
-    })
+    L.rawSet  (mt , "__index"    , scope)
     L.register(mt, "__newindex"  , (L: LuaState, tbl: Any, k: Any, v: Any) => {
-      overwrittenKeys.put(k, ())
       L.rawSet(exports, k, v)
+      L.rawSet(scope, k, v)
       ()
     })
 
-    val chunk = L.loadString(IOUtils.readFileAsString(fullPath), s"@$path") match {
-      case Left (c) => c
-      case Right(e) => throw EditorException(e)
-    }
+    val chunk = loadChunk(L, path)
     L.setFenv(chunk, _G)
     L.pcall(chunk, 1).fold(identity, e => throw EditorException(e)).head.as[Option[Any]] match {
       case Some(x) => x
@@ -217,8 +227,31 @@ final class LuaContext(val packages: PackageList, val logger: Logger, modules: S
   }
 
   private val exportCache = new mutable.HashMap[String, LuaObject]
-  def getLuaExport(path: String) = exportCache.getOrElseUpdate(path, loadLuaExport(path))
+  def getLuaExport(path: String) = exportCache.getOrElseUpdate(path, {
+    val export = loadLuaExport(path)
+    exportLog += path
+    export
+  })
+
+  // Captures how this context was initialized, so independent copies of it can be made for other threads. This must
+  // be called on the thread that owns the context.
+  def snapshot(): LuaContext.Snapshot =
+    LuaContext.Snapshot(packages, logger, moduleLog.toVector, exportLog.toVector, chunkCache)
 }
 object LuaContext {
   private val globalsWrapper = new LuaRegistryEntry[Any]
+
+  // Rebuilds a context by loading the same modules and exports into a new Lua state, rather than by copying the old
+  // state's tables: the native libraries close over their LuaContext, so copied functions would still call back into
+  // the original one. With a chunk cache, none of the Lua source is parsed again.
+  //
+  // Each instance is independent of the original and of every other instance, so each can be used on its own thread.
+  final case class Snapshot(packages: PackageList, logger: Logger, modules: Seq[LuaModule], exports: Seq[String],
+                            chunkCache: Option[LuaChunkCache]) {
+    def instantiate(): LuaContext = {
+      val ctx = new LuaContext(packages, logger, modules, chunkCache)
+      for(path <- exports) ctx.getLuaExport(path)
+      ctx
+    }
+  }
 }
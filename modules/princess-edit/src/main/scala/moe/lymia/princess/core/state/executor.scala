@@ -19,74 +19,181 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package moe.lymia.princess.core.state
 
 import moe.lymia.princess.native.fonts.FontDatabase
 import moe.lymia.princess.native.svg.Resvg
+import moe.lymia.princess.util.swt.UIUtils
+import org.eclipse.swt.graphics.ImageData
 import rx.Var
 
 import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
-import java.util.concurrent.{ConcurrentHashMap, LinkedBlockingQueue}
 import scala.collection.mutable
+import scala.concurrent.{Future, Promise}
 
 private object ThreadId {
   private val threadId = new AtomicInteger(0)
   def make(): Int = threadId.incrementAndGet()
 }
 
+sealed abstract class TaskPriority(private[state] val level: Int)
+object TaskPriority {
+  case object Interactive extends TaskPriority(0) // previews and editor updates the user is waiting on
+  case object Background  extends TaskPriority(1) // bulk work such as exports
+
+  private[state] val levels = 2
+}
+
 private trait ExecutorBase[Request, Message] {
   protected def nameBase: String
+  protected def threadCount: Int = 1
   protected def handleRequest(r: Request, m: Message): Unit
+  // Called for every message that is still pending when the executor is shut down, and so will never be handled.
+  protected def requestDropped(m: Message): Unit = { }
 
   private val randId = new AtomicLong(0)
   protected def newRandId(): Long = randId.incrementAndGet()
 
-  @volatile private var isRunning = true
+  // All state below is guarded by `lock`.
+  private val lock = new Object
+  private var isRunning = true
+  private val requestData = new mutable.HashMap[Request, (Message, TaskPriority)]
+  private val requestBuffers = Array.fill(TaskPriority.levels)(new mutable.Queue[Request])
+  private val runningRequests = new mutable.HashSet[Request]
+  private val deferredRequests = new mutable.HashSet[Request]
+
   def shutdown(): Unit = {
-    isRunning = false
+    val dropped = lock synchronized {
+      isRunning = false
+      val dropped = requestData.values.map(_._1).toSeq
+      requestData.clear()
+      requestBuffers.foreach(_.clear())
+      deferredRequests.clear()
+      lock.notifyAll()
+      dropped
+    }
+    dropped.foreach(requestDropped)
   }
 
-  private val requestData = new ConcurrentHashMap[Request, Message]
-  private val requestBuffer = new LinkedBlockingQueue[Request]
+  // A request pushed with a key that is already pending replaces the pending message, but keeps its place in the
+  // queue. If the new request has a higher priority, it is moved forward to the more urgent queue instead.
+  //
+  // Returns false if the executor has been shut down, in which case the request is never handled.
+  protected def pushRequest(req: Request, msg: Message, priority: TaskPriority = TaskPriority.Interactive): Boolean =
+    lock synchronized {
+      if (isRunning) requestData.put(req, (msg, priority)) match {
+        case Some((_, oldPriority)) if oldPriority.level <= priority.level =>
+          requestData.put(req, (msg, oldPriority))
+        case _ =>
+          requestBuffers(priority.level).enqueue(req)
+          lock.notifyAll()
+      }
+      isRunning
+    }
 
-  protected def pushRequest(req: Request, msg: Message): Unit = {
-    requestData.put(req, msg)
-    requestBuffer.add(req)
+  private def nextRequest(): Option[(Request, Message)] = lock synchronized {
+    var next: Option[(Request, Message)] = None
+    while (isRunning && next.isEmpty) requestBuffers.find(_.nonEmpty) match {
+      case Some(queue) =>
+        val req = queue.dequeue()
+        requestData.get(req) match {
+          case Some(_) if runningRequests.contains(req) =>
+            // another worker is still handling this key, so pick it up again once that finishes
+            deferredRequests.add(req)
+          case Some((msg, priority)) if requestBuffers(priority.level) eq queue =>
+            requestData.remove(req)
+            runningRequests.add(req)
+            next = Some((req, msg))
+          case _ => // stale entry for a request that was already handled or moved to another queue
+        }
+      case None => lock.wait()
+    }
+    next
+  }
+  private def finishRequest(req: Request): Unit = lock synchronized {
+    runningRequests.remove(req)
+    if (deferredRequests.remove(req)) requestData.get(req).foreach { case (_, priority) =>
+      requestBuffers(priority.level).enqueue(req)
+      lock.notifyAll()
+    }
   }
 
-  private val thread = new Thread() {
+  private val threads = Seq.fill(threadCount)(new Thread() {
     setName(s"PrincessEdit $nameBase thread #${ThreadId.make()}")
     override def run(): Unit = {
-      while (isRunning) {
-        val req = requestBuffer.poll()
-        if (req != null) requestData.remove(req) match {
-          case null => // no op
-          case msg => handleRequest(req, msg)
+      var next = nextRequest()
+      while (next.isDefined) {
+        val (req, msg) = next.get
+        try {
+          handleRequest(req, msg)
+        } catch {
+          case e: Exception => e.printStackTrace()
+        } finally {
+          finishRequest(req)
         }
+        next = nextRequest()
       }
     }
-  }
+  })
 
-  def isActiveThread: Boolean = Thread.currentThread() eq thread
+  def isActiveThread: Boolean = threads.exists(_ eq Thread.currentThread())
   def assertActiveThread(): Unit = assert(isActiveThread)
-  def start(): Unit = thread.start()
+  def start(): Unit = threads.foreach(_.start())
 }
 
-private case class SvgRenderRequest(data: () => (String, Int, Int), callback: Array[Byte] => Unit)
-private[state] class SvgRasterizer extends ExecutorBase[Any, SvgRenderRequest] {
+private sealed trait SvgRequest
+private object SvgRequest {
+  case class Render(data: () => (String, Int, Int), cacheResult: Boolean, callback: ImageData => Unit)
+    extends SvgRequest
+  case class Execute(v: () => Unit, result: Promise[Unit]) extends SvgRequest
+}
+private[state] class SvgRasterizer(rasterCache: RasterCache) extends ExecutorBase[Any, SvgRequest] {
+  // Shared between all workers. The native side only takes a read lock on the database while rendering.
   private val fontDb = new FontDatabase()
 
   override protected def nameBase: String = "SVG rasterizer"
-  override protected def handleRequest(r: Any, m: SvgRenderRequest): Unit = {
-    val (data, w, h) = m.data()
-    m.callback(renderSync(data, w, h))
+  override protected def threadCount: Int = Runtime.getRuntime.availableProcessors() max 1
+  override protected def handleRequest(r: Any, m: SvgRequest): Unit = m match {
+    case SvgRequest.Render(func, cacheResult, callback) =>
+      val (data, w, h) = func()
+      callback(renderSync(data, w, h, cacheResult))
+    case SvgRequest.Execute(func, result) =>
+      try {
+        func()
+        result.success(())
+      } catch {
+        case t: Throwable => result.failure(t)
+      }
+  }
+  override protected def requestDropped(m: SvgRequest): Unit = m match {
+    case SvgRequest.Execute(_, result) => result.tryFailure(SvgRasterizer.shutDownError())
+    case _ =>
   }
 
-  def renderSync(data: String, w: Int, h: Int): Array[Byte] =
-    Resvg.render(data, None, fontDb, w, h)
-  def render(func: () => (String, Int, Int), key: Any, callback: Array[Byte] => Unit): Unit =
-    pushRequest(key, SvgRenderRequest(func, callback))
+  def poolSize: Int = threadCount
+
+  // The cache is always checked, but only written to if `cacheResult` is set.
+  def renderSync(data: String, w: Int, h: Int, cacheResult: Boolean): ImageData = {
+    val rgba = rasterCache.get(data, w, h).getOrElse {
+      val rendered = Resvg.renderRaw(data, None, fontDb, w, h)
+      if (cacheResult) rasterCache.put(data, w, h, rendered)
+      rendered
+    }
+    UIUtils.imageDataFromRGBA(w, h, rgba)
+  }
+  def render(func: () => (String, Int, Int), key: Any, callback: ImageData => Unit,
+             priority: TaskPriority = TaskPriority.Interactive, cacheResult: Boolean = false): Unit =
+    pushRequest(key, SvgRequest.Render(func, cacheResult, callback), priority)
+  // The returned future fails if the task throws, or if the rasterizer is shut down before the task runs.
+  def execute(func: () => Unit, priority: TaskPriority): Future[Unit] = {
+    val result = Promise[Unit]()
+    if (!pushRequest(newRandId(), SvgRequest.Execute(func, result), priority))
+      result.tryFailure(SvgRasterizer.shutDownError())
+    result.future
+  }
+}
+private object SvgRasterizer {
+  def shutDownError() = new IllegalStateException("SVG rasterizer has been shut down")
 }
 
 private sealed trait LuaRequest
@@ -117,6 +224,8 @@ private[state] class LuaExecutor extends ExecutorBase[Any, LuaRequest] {
     varUpdatesLock synchronized { varUpdates.put(v, value) }
     pushRequest(varUpdatesMarker, LuaRequest.UpdateVars)
   }
-  def executeLua(func: () => Unit): Unit = pushRequest(newRandId(), LuaRequest.Execute(func))
-  def executeLua(func: () => Unit, key: Any): Unit = pushRequest(key, LuaRequest.Execute(func))
+  def executeLua(func: () => Unit, priority: TaskPriority): Unit =
+    pushRequest(newRandId(), LuaRequest.Execute(func), priority)
+  def executeLua(func: () => Unit, key: Any, priority: TaskPriority): Unit =
+    pushRequest(key, LuaRequest.Execute(func), priority)
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package moe.lymia.princess.core.state
+
+import moe.lymia.princess.util.IOUtils
+import org.apache.commons.codec.digest.DigestUtils
+
+import java.io._
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.util.concurrent.{ArrayBlockingQueue, ThreadPoolExecutor, TimeUnit}
+import java.util.zip.{Deflater, DeflaterOutputStream, InflaterInputStream}
+
+// Persistent cache of rasterized SVGs, keyed by a hash of the SVG text and the target size. Entries are stored as
+// the premultiplied RGBA returned by Resvg.renderRaw, deflated, behind a small header.
+//
+// Note that raster images linked by path (see RasterizeResourceLoader) are not part of the key, so changes to them
+// are not noticed until the entry is evicted.
+final class RasterCache(directory: Path, maxSize: Long) {
+  private val lock = new Object
+  private var currentSize = 0L
+  // access ordered, so iteration order is least recently used first
+  private val entries = new java.util.LinkedHashMap[String, java.lang.Long](16, 0.75f, true)
+
+  // Entries are compressed and written on a single background thread, so renders never wait on the disk. Writes that
+  // arrive while too many others are still pending are dropped.
+  private val writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue[Runnable](RasterCache.MaxPendingWrites),
+                                              { (r: Runnable) =>
+                                                val thread = new Thread(r, "PrincessEdit raster cache writer thread")
+                                                thread.setDaemon(true)
+                                                thread
+                                              }, new ThreadPoolExecutor.DiscardPolicy)
+
+  Files.createDirectories(directory)
+  lock synchronized {
+    // the last modified time of each entry is bumped whenever it is read, so it can be used to restore LRU order
+    val files = IOUtils.list(directory).filter(_.getFileName.toString.endsWith(RasterCache.Extension))
+    for (file <- files.sortBy(x => Files.getLastModifiedTime(x).toMillis)) {
+      val size = Files.size(file)
+      entries.put(file.getFileName.toString.stripSuffix(RasterCache.Extension), size)
+      currentSize += size
+    }
+    for (file <- IOUtils.list(directory) if file.getFileName.toString.endsWith(".tmp")) tryDelete(file)
+    evict()
+  }
+
+  private def key(svg: String, w: Int, h: Int) =
+    DigestUtils.sha256Hex(s"${RasterCache.Version}:${w}x$h:$svg".getBytes(StandardCharsets.UTF_8))
+  private def pathFor(key: String) = directory.resolve(s"$key${RasterCache.Extension}")
+
+  private def tryDelete(path: Path): Unit =
+    try Files.deleteIfExists(path) catch {
+      case _: IOException => // may still be open on some platforms, it will be cleaned up on the next startup
+    }
+  private def remove(key: String): Unit = lock synchronized {
+    val size = entries.remove(key)
+    if (size != null) currentSize -= size
+    tryDelete(pathFor(key))
+  }
+  private def evict(): Unit = lock synchronized {
+    val iter = entries.entrySet().iterator()
+    while (currentSize > maxSize && iter.hasNext) {
+      val entry = iter.next()
+      currentSize -= entry.getValue
+      iter.remove()
+      tryDelete(pathFor(entry.getKey))
+    }
+  }
+
+  def get(svg: String, w: Int, h: Int): Option[Array[Byte]] = {
+    val k = key(svg, w, h)
+    if (lock.synchronized(entries.get(k)) == null) None
+    else try {
+      val path = pathFor(k)
+      val in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))
+      val data = try {
+        if (in.readInt() != RasterCache.Magic || in.readInt() != RasterCache.Version ||
+            in.readInt() != w || in.readInt() != h)
+          throw new IOException(s"corrupted raster cache entry $k")
+        val inflater = new InflaterInputStream(in)
+        val data = new Array[Byte](w * h * 4)
+        new DataInputStream(inflater).readFully(data)
+        if (inflater.read() != -1) throw new IOException(s"corrupted raster cache entry $k")
+        data
+      } finally {
+        in.close()
+      }
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()))
+      Some(data)
+    } catch {
+      case _: IOException =>
+        remove(k)
+        None
+    }
+  }
+
+  // Queues `rgba` to be written to the cache. It is copied first, so the caller is free to modify it afterwards.
+  def put(svg: String, w: Int, h: Int, rgba: Array[Byte]): Unit = {
+    val data = rgba.clone()
+    writer.execute(() => write(svg, w, h, data))
+  }
+  private def write(svg: String, w: Int, h: Int, rgba: Array[Byte]): Unit = try {
+    val k = key(svg, w, h)
+    val temp = Files.createTempFile(directory, k, ".tmp")
+    try {
+      val deflater = new Deflater(Deflater.BEST_SPEED)
+      try {
+        val out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))
+        try {
+          out.writeInt(RasterCache.Magic)
+          out.writeInt(RasterCache.Version)
+          out.writeInt(w)
+          out.writeInt(h)
+          val compressed = new DeflaterOutputStream(out, deflater)
+          compressed.write(rgba)
+          compressed.finish()
+        } finally {
+          out.close()
+        }
+      } finally {
+        deflater.end()
+      }
+      val size = Files.size(temp)
+      if (size <= maxSize) {
+        Files.move(temp, pathFor(k), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        lock synchronized {
+          val oldSize = entries.put(k, size)
+          if (oldSize != null) currentSize -= oldSize
+          currentSize += size
+          evict()
+        }
+      }
+    } finally {
+      tryDelete(temp)
+    }
+  } catch {
+    case e: IOException => e.printStackTrace() // the cache is best effort, so just carry on without it
+  }
+
+  // Stops the writer thread. Writes that are still pending are discarded.
+  def shutdown(): Unit = writer.shutdownNow()
+}
+object RasterCache {
+  private val Magic = 0x50455243 // "PERC"
+  private val Version = 2
+  private val Extension = ".raster"
+  private val MaxPendingWrites = 8
+}
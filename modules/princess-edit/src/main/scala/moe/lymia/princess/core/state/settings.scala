@@ -116,6 +116,9 @@ object Settings {
   private val projectLockDirectory = rootDirectory.resolve("project-locks")
   Files.createDirectories(projectLockDirectory)
 
+  val rasterCacheDirectory: Path = rootDirectory.resolve("raster-cache")
+  val luaCacheDirectory: Path = rootDirectory.resolve("lua-cache")
+
   lazy val global: FilesystemSettingsStore = FilesystemSettingsStore.load(globalSettingsPath)
   def getProjectSettings(path: Path, id: UUID): FilesystemSettingsStore =
     FilesystemSettingsStore.load(projectSettingsDirectory.resolve(s"${hashPath(path, id)}.json"))
@@ -32,14 +32,17 @@ import org.eclipse.swt.graphics._
 import org.eclipse.swt.widgets._
 import rx._
 
-import java.io.ByteArrayInputStream
 import scala.annotation.elidable
+import scala.concurrent.Future
 import scala.util.Try
 
 // TODO: Improve error handling
 
 class GuiContext(val display: Display, loop: GuiLoop, uiThread: Thread) {
-  private val svgExecutor = new SvgRasterizer
+  val rasterCache = new RasterCache(Settings.rasterCacheDirectory,
+                                    1024L * 1024 * 512 /* TODO 512 MB cache, make an option in the future */)
+
+  private val svgExecutor = new SvgRasterizer(rasterCache)
   private val luaExecutor = new LuaExecutor
 
   svgExecutor.start()
@@ -50,6 +53,7 @@ class GuiContext(val display: Display, loop: GuiLoop, uiThread: Thread) {
     isRunning = false
     svgExecutor.shutdown()
     luaExecutor.shutdown()
+    rasterCache.shutdown()
   }
 
   val clipboard = new Clipboard(display)
@@ -75,37 +79,45 @@ class GuiContext(val display: Display, loop: GuiLoop, uiThread: Thread) {
     @volatile private var ret = null.asInstanceOf[Try[T]]
     def doTry(t: => T): Unit = {
       ret = Try(t)
-      isDone = true
-      lock synchronized { lock.notify() }
+      lock synchronized {
+        isDone = true
+        lock.notifyAll()
+      }
     }
     def sync(): T = {
-      while (isRunning && !isDone) lock synchronized { lock.wait(1000) }
+      lock synchronized { while (isRunning && !isDone) lock.wait(1000) }
       ret.get
     }
   }
 
   def queueUpdate[A, B <: A](rxVar: Var[A], newValue: B): Unit = luaExecutor.updateVar(rxVar, newValue)
 
-  private def loadImage(arr: Array[Byte]): ImageData = {
-    val loader = new ImageLoader()
-    loader.load(new ByteArrayInputStream(arr))
-    loader.data.head
-  }
-
+  // Interactive renders are mostly previews that are only ever seen once, so they are only stored in the raster
+  // cache when `cacheResult` is set. Background and synchronous renders (exports, icons) are always stored.
   def asyncRender(key: Any, svg: String, x: Int, y: Int)(callback: ImageData => Unit): Unit =
-    svgExecutor.render(() => (svg, x, y), key, x => callback(loadImage(x)))
+    svgExecutor.render(() => (svg, x, y), key, callback)
   def asyncRender(key: Any, getData: => (String, Int, Int))(callback: ImageData => Unit): Unit =
-    svgExecutor.render(() => getData, key, x => callback(loadImage(x)))
+    asyncRender(TaskPriority.Interactive, key, getData)(callback)
+  def asyncRender(priority: TaskPriority, key: Any, getData: => (String, Int, Int))
+                 (callback: ImageData => Unit): Unit =
+    asyncRender(priority, key, priority == TaskPriority.Background, getData)(callback)
+  def asyncRender(priority: TaskPriority, key: Any, cacheResult: Boolean, getData: => (String, Int, Int))
+                 (callback: ImageData => Unit): Unit =
+    svgExecutor.render(() => getData, key, callback, priority, cacheResult)
   def syncRender(svg: String, x: Int, y: Int): ImageData =
-    loadImage(svgExecutor.renderSync(svg, x, y))
+    svgExecutor.renderSync(svg, x, y, cacheResult = true)
 
-  def asyncLuaExec(f: => Unit): Unit = luaExecutor.executeLua(() => f)
-  def asyncLuaExec(key: Any, f: => Unit): Unit = luaExecutor.executeLua(() => f, key)
-  def syncLuaExec[T](f: => T): T = if (luaExecutor.isActiveThread) f else {
+  // Runs arbitrary rasterization-bound work (such as exporting a card) on the SVG rasterizer pool.
+  def rasterizerPoolSize: Int = svgExecutor.poolSize
+  def asyncRasterExec(priority: TaskPriority)(f: => Unit): Future[Unit] = svgExecutor.execute(() => f, priority)
+
+  def asyncLuaExec(f: => Unit): Unit = luaExecutor.executeLua(() => f, TaskPriority.Interactive)
+  def asyncLuaExec(key: Any, f: => Unit): Unit = luaExecutor.executeLua(() => f, key, TaskPriority.Interactive)
+  def asyncLuaExec(priority: TaskPriority, key: Any, f: => Unit): Unit = luaExecutor.executeLua(() => f, key, priority)
+  def syncLuaExec[T](f: => T): T = syncLuaExec(TaskPriority.Interactive, f)
+  def syncLuaExec[T](priority: TaskPriority, f: => T): T = if (luaExecutor.isActiveThread) f else {
     val sync = new Syncer[T]
-    asyncLuaExec {
-      sync.doTry(f)
-    }
+    luaExecutor.executeLua(() => sync.doTry(f), priority)
     sync.sync()
   }
 
@@ -33,7 +33,7 @@ trait LuaUIImplicits {
 object UILib extends LuaLibrary {
   override def open(L: LuaState, table: LuaTable): Unit = {
     L.register(table, "Column", (L: LuaState, name: String, width: Int, fn: LuaClosure, sortFn: Option[LuaClosure],
-                                 isDefault: Boolean) =>
-      new TableColumnData(name, width, isDefault, L, fn, sortFn))
+                                 isDefault: Boolean, sortKeyFn: Option[LuaClosure]) =>
+      new TableColumnData(name, width, isDefault, L, fn, sortFn, sortKeyFn))
   }
 }
\ No newline at end of file
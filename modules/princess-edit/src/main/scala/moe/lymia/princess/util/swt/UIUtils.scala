@@ -30,7 +30,7 @@ import org.eclipse.jface.dialogs.MessageDialog
 import org.eclipse.jface.resource.FontDescriptor
 import org.eclipse.jface.window.IShellProvider
 import org.eclipse.swt.SWT
-import org.eclipse.swt.graphics.Point
+import org.eclipse.swt.graphics.{ImageData, PaletteData, Point}
 import org.eclipse.swt.widgets.{Control, MessageBox}
 
 import java.nio.file.{Files, Path}
@@ -61,6 +61,29 @@ object UIUtils {
     else size
   }
 
+  // Converts premultiplied RGBA pixels (as rendered by Resvg) to ImageData without going through an image codec.
+  // The array is reused in place as the pixel data of the returned image, so it must not be used afterwards.
+  def imageDataFromRGBA(width: Int, height: Int, rgba: Array[Byte]): ImageData = {
+    val alpha = new Array[Byte](width * height)
+    var i = 0
+    while(i < alpha.length) {
+      val p = i * 4
+      val a = rgba(p + 3) & 0xFF
+      alpha(i) = a.toByte
+      if(a != 0 && a != 0xFF) {
+        // SWT expects straight alpha, so undo the premultiplication
+        rgba(p    ) = (((rgba(p    ) & 0xFF) * 0xFF + a / 2) / a).toByte
+        rgba(p + 1) = (((rgba(p + 1) & 0xFF) * 0xFF + a / 2) / a).toByte
+        rgba(p + 2) = (((rgba(p + 2) & 0xFF) * 0xFF + a / 2) / a).toByte
+      }
+      i += 1
+    }
+
+    val data = new ImageData(width, height, 32, new PaletteData(0xFF000000, 0x00FF0000, 0x0000FF00), 4, rgba)
+    data.alphaData = alpha
+    data
+  }
+
   def loadSVGFromResource(res: String): SVGFile = SVGFile(XML.load(IOUtils.getResource(res)))
   def loadSVGFromPath(path: Path): SVGFile = SVGFile(XML.load(Files.newInputStream(path)))
 
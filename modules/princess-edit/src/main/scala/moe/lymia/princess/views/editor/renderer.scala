@@ -23,6 +23,7 @@
 package moe.lymia.princess.views.editor
 
 import moe.lymia.lua._
+import moe.lymia.princess.core.state.TaskPriority
 import moe.lymia.princess.svg._
 import moe.lymia.princess.util.swt.{RxWidget, UIUtils}
 import moe.lymia.princess.views.exportcards.ExportCardsDialog
@@ -34,10 +35,14 @@ import org.eclipse.swt.layout._
 import org.eclipse.swt.widgets._
 import rx._
 
+import java.util.UUID
+
 private final class RendererCanvas(parent: Composite, state: EditorState)
   extends Canvas(parent, SWT.NONE) with RxWidget {
 
   private var currentImage: Image = _
+  // Only the first render after a card is opened is stored in the raster cache, not the renders after each edit.
+  @volatile private var lastOpenedCard: Option[UUID] = None
   private val currentCardData: Rx[Option[Seq[LuaObject]]] = Rx {
     val card = state.currentCardData().map(_.luaData())
     val view = state.currentView().info.root.luaData()
@@ -46,7 +51,10 @@ private final class RendererCanvas(parent: Composite, state: EditorState)
   private val obs = currentCardData.foreach { d =>
     if(!this.isDisposed) d match {
       case Some(data) =>
-        state.ctx.asyncRender (this, {
+        val card = state.currentCard.now
+        val isFirstRender = card != lastOpenedCard
+        lastOpenedCard = card
+        state.ctx.asyncRender (TaskPriority.Interactive, this, isFirstRender, {
           val (componentSize, rendered) =
             state.ctx.syncUiLuaExec(this.getSize, state.idData.renderer.render(data, RasterizeResourceLoader))
           val (x, y) = UIUtils.computeSizeFromRatio(componentSize, rendered.size.width, rendered.size.height)
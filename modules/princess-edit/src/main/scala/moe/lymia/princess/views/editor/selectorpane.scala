@@ -22,9 +22,10 @@
 
 package moe.lymia.princess.views.editor
 
-import moe.lymia.princess.core.cardmodel.{FullCardData, TableColumnData}
+import moe.lymia.princess.core.cardmodel.{CardListChange, CardView, FullCardData, TableColumnData}
 import moe.lymia.princess.util.swt.RxWidget
 import moe.lymia.princess.views.exportcards.ExportCardsDialog
+import moe.lymia.princess.views.importcards.ImportCardsDialog
 import org.eclipse.jface.action._
 import org.eclipse.jface.layout.TableColumnLayout
 import org.eclipse.jface.viewers._
@@ -36,15 +37,25 @@ import play.api.libs.json.JsObject
 import rx._
 
 import java.util.UUID
+import java.util.concurrent.ConcurrentLinkedQueue
 import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success}
 
 // TODO: Factor out the table sort management code, etc
 // TODO: Make sorting code more efficient (don't run it in the editor)
-case class RowData(id: UUID, data: FullCardData, fields: Seq[String])
+// The fields of a row are only computed once it's displayed or sorted on.
+case class RowData(id: UUID, data: FullCardData, columns: Seq[TableColumnData]) {
+  // The data version and fields last displayed for this row.
+  @volatile private[editor] var displayed: (Long, Seq[String]) = (-1L, Seq())
+}
 final class CardSelectorTableViewer(parent: Composite, state: EditorState)
   extends Composite(parent, SWT.NONE) with RxWidget {
 
-  private val viewer = new TableViewer(this, SWT.MULTI | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL)
+  private val viewer =
+    new TableViewer(this, SWT.MULTI | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL | SWT.VIRTUAL)
+  viewer.setUseHashlookup(true)
   def getControl: Control = viewer.getControl
   def getTable: Table = viewer.getTable
 
@@ -53,7 +64,7 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
 
   // Setup columns
   private val activeColumns = Var(state.idData.columns.columns.filter(_.isDefault))
-  private val sortOrder = Var[Option[Ordering[RowData]]](None)
+  private val sortOrder = Var[Option[(TableColumnData, Boolean)]](None) // The column, and whether it's descending.
   def setColumnOrder(columns: Seq[TableColumnData]): Unit = {
     viewer.getTable.setRedraw(false)
     activeColumns.update(columns)
@@ -68,7 +79,7 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
     for(column <- viewer.getTable.getColumns) column.dispose()
 
     val tableLayout = new TableColumnLayout()
-    for((column, i) <- activeColumns.now.zipWithIndex) {
+    for(column <- activeColumns.now) {
       val col = new TableColumn(viewer.getTable, SWT.NONE)
       col.setText(state.i18n.user(column.title))
       col.setMoveable(false)
@@ -87,17 +98,7 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
           }
 
           if(viewer.getTable.getSortDirection == SWT.NONE) state.ctx.queueUpdate(sortOrder, None)
-          else {
-            val multiplier = viewer.getTable.getSortDirection match {
-              case SWT.UP   => 1
-              case SWT.DOWN => -1
-            }
-            state.ctx.queueUpdate(sortOrder, Some(
-              ((a, b) =>
-                multiplier * column.computeOrdering(a.data.luaData.now, a.fields(i), b.data.luaData.now, b.fields(i))
-              ) : Ordering[RowData]
-            ))
-          }
+          else state.ctx.queueUpdate(sortOrder, Some(column -> (viewer.getTable.getSortDirection == SWT.DOWN)))
         }
       })
       tableLayout.setColumnData(col, new ColumnPixelData(column.width, true))
@@ -109,42 +110,224 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
   }
   refreshColumns()
 
-  // Setup cards rx
-  private val cardsRx: Rx[Seq[RowData]] = Rx {
-    state.currentView().fullCardList().map(card => {
-      val columns = card.columnData()
-      RowData(card.uuid, card, activeColumns().map(columns))
+  // The rows shown in the table, and the index of each card's row. The index is rebuilt when it's needed after rows
+  // have moved. Only accessed on the UI thread.
+  private val tableRows = new mutable.ArrayBuffer[RowData]()
+  private val rowIndex = new mutable.HashMap[FullCardData, Int]()
+  private var rowIndexValid = true
+
+  // Changes to the table made on the Lua thread, applied on the UI thread in the order they were made.
+  private val tableUpdates = new ConcurrentLinkedQueue[() => Unit]()
+  private def queueTableUpdate(f: => Unit): Unit = {
+    tableUpdates.add(() => f)
+    state.ctx.asyncUiExec { applyTableUpdates() }
+  }
+  private def applyTableUpdates(): Unit = if(!viewer.getTable.isDisposed) {
+    var update = tableUpdates.poll()
+    while(update != null) {
+      update()
+      update = tableUpdates.poll()
+    }
+  }
+
+  // Replaces the table's rows. Only the rows between the unchanged start and end of the list are cleared, and the
+  // table fetches them again when they're next displayed.
+  private def resetTableRows(newRows: IndexedSeq[RowData]): Unit = {
+    val oldRows = tableRows
+    val limit = math.min(oldRows.length, newRows.length)
+    def sameRow(oldIndex: Int, newIndex: Int) = {
+      val isSame = oldRows(oldIndex) == newRows(newIndex)
+      if(isSame) newRows(newIndex).displayed = oldRows(oldIndex).displayed
+      isSame
+    }
+    var prefix = 0
+    while(prefix < limit && sameRow(prefix, prefix)) prefix += 1
+    var suffix = 0
+    while(suffix < limit - prefix && sameRow(oldRows.length - 1 - suffix, newRows.length - 1 - suffix)) suffix += 1
+
+    tableRows.clear()
+    tableRows ++= newRows
+    rowIndexValid = false
+    viewer.setItemCount(newRows.length)
+    if(prefix < newRows.length - suffix) viewer.getTable.clear(prefix, newRows.length - suffix - 1)
+  }
+  // Applies changes to the view's cards while the table isn't sorted. The rows after the first one changed have moved,
+  // so they're cleared. Cards are usually added at the end, so this is normally only the new rows.
+  private def applyCardListChanges(changes: Seq[CardListChange], columns: Seq[TableColumnData]): Unit = {
+    var firstMoved = Int.MaxValue
+    changes.foreach {
+      case CardListChange.Added(i, card) =>
+        if(rowIndexValid && i == tableRows.length) rowIndex.put(card, i) else rowIndexValid = false
+        tableRows.insert(i, RowData(card.uuid, card, columns))
+        firstMoved = math.min(firstMoved, i)
+      case CardListChange.Removed(i, card) =>
+        if(rowIndexValid && i == tableRows.length - 1) rowIndex.remove(card) else rowIndexValid = false
+        tableRows.remove(i)
+        firstMoved = math.min(firstMoved, i)
+    }
+    viewer.setItemCount(tableRows.length)
+    if(firstMoved < tableRows.length) viewer.getTable.clear(firstMoved, tableRows.length - 1)
+  }
+  private def updateTableRow(card: FullCardData): Unit = {
+    if(!rowIndexValid) {
+      rowIndex.clear()
+      for(i <- tableRows.indices) rowIndex.put(tableRows(i).data, i)
+      rowIndexValid = true
+    }
+    rowIndex.get(card).foreach(i => viewer.getTable.clear(i))
+  }
+
+  // Setup cards
+  private implicit val executionContext: ExecutionContext = ExecutionContext.global
+  private val cardsRx = Rx { (state.currentView(), state.currentView().fullCardList(), activeColumns()) }
+
+  // The view whose cards are shown, and the columns they're shown with. Only accessed on the Lua thread, like the rest
+  // of the state below.
+  private var shownView: CardView = _
+  private var shownColumns: Seq[TableColumnData] = _
+  private def currentRows(): IndexedSeq[RowData] = {
+    val columns = shownColumns
+    shownView.currentCardList.iterator.map(card => RowData(card.uuid, card, columns)).toIndexedSeq
+  }
+  private def showRows(rows: IndexedSeq[RowData]): Unit = queueTableUpdate { resetTableRows(rows) }
+
+  // The rows sorted in ascending order by each column that's been sorted on, kept until the rows or their cards
+  // change.
+  private val sortCache = new mutable.HashMap[TableColumnData, IndexedSeq[RowData]]()
+  private var sortGeneration = 0
+  private def updateSort(): Unit = {
+    sortGeneration += 1
+    val generation = sortGeneration
+    def publish(column: TableColumnData, descending: Boolean, sorted: IndexedSeq[RowData]) = {
+      sortCache.put(column, sorted)
+      showRows(if(descending) sorted.reverse else sorted)
+    }
+    sortOrder.now match {
+      case None => showRows(currentRows())
+      case Some((column, descending)) => sortCache.get(column) match {
+        case Some(sorted) => publish(column, descending, sorted)
+        case None =>
+          val cards = currentRows()
+          cards.foreach(x => watchCard(x.data))
+          if(column.hasSortKey) {
+            // Compute each card's key once here, and sort the keys in parallel off the Lua thread.
+            val keys = FullCardData.sortKeys(column, cards.map(_.data)).toArray
+            Future {
+              val indices = Array.tabulate[Integer](keys.length)(x => x)
+              java.util.Arrays.parallelSort(indices, (a: Integer, b: Integer) =>
+                TableColumnData.compareSortKeys(keys(a), keys(b)))
+              indices.toIndexedSeq.map(x => cards(x))
+            }.onComplete {
+              case Success(sorted) =>
+                state.ctx.asyncLuaExec { if(generation == sortGeneration) publish(column, descending, sorted) }
+              case Failure(e) => e.printStackTrace() // the table keeps its previous order
+            }
+          } else {
+            FullCardData.columnValues(column, cards.map(_.data))
+            val ordering: Ordering[RowData] = (a, b) =>
+              column.computeOrdering(a.data.luaData.now, a.data.columnValue(column),
+                                     b.data.luaData.now, b.data.columnValue(column))
+            publish(column, descending, cards.sorted(ordering))
+          }
+      }
+    }
+  }
+
+  // Cards whose column values have been computed, watched so their rows are updated when they change.
+  private val watchedCards = new mutable.HashMap[FullCardData, Obs]()
+  private def watchCard(card: FullCardData): Unit = if(!watchedCards.contains(card)) {
+    watchedCards.put(card, card.luaData.triggerLater {
+      if(sortOrder.now.isDefined) {
+        sortCache.clear()
+        updateSort()
+      }
+      queueTableUpdate { updateTableRow(card) }
     })
   }
-  private val sortedCards: Rx[Seq[RowData]] = state.ctx.syncLuaExec {
-    Rx {
-      sortOrder() match {
-        case None => cardsRx()
-        case Some(ordering) => cardsRx().sorted(ordering)
+
+  // While the table isn't sorted, the changes to the view's cards are applied to it directly. Otherwise, the rows are
+  // sorted again once the changes are published.
+  private val cardListListener: Seq[CardListChange] => Unit = changes => {
+    changes.foreach {
+      case CardListChange.Removed(_, card) => watchedCards.remove(card).foreach(_.kill())
+      case _ =>
+    }
+    if(sortOrder.now.isEmpty) {
+      val columns = shownColumns
+      queueTableUpdate { applyCardListChanges(changes, columns) }
+    }
+  }
+
+  // Rows whose fields are out of date, waiting to be computed on the Lua thread. The table asks for rows one by one as
+  // they're displayed, so they're collected here and computed in a batch, rather than blocking the UI thread on each.
+  private val pendingRows = new mutable.LinkedHashSet[RowData]()
+  private def rowFields(row: RowData): Seq[String] = row.displayed match {
+    case (version, fields) if version == row.data.dataVersion => fields
+    case (_, fields) =>
+      val schedule = pendingRows.synchronized { pendingRows.add(row) && pendingRows.size == 1 }
+      if(schedule) state.ctx.asyncLuaExec { computePendingRows() }
+      // the row shows its old fields, or empty ones, until the new ones are ready
+      if(fields.nonEmpty) fields else row.columns.map(_ => "")
+  }
+  private def computePendingRows(): Unit = {
+    val rows = pendingRows.synchronized {
+      val rows = pendingRows.toSeq
+      pendingRows.clear()
+      rows
+    }
+    for((columns, group) <- rows.groupBy(_.columns)) {
+      val cards = group.map(_.data)
+      val values = columns.map(column => FullCardData.columnValues(column, cards))
+      for((row, i) <- group.zipWithIndex) {
+        watchCard(row.data)
+        row.displayed = (row.data.dataVersion, values.map(_(i)))
       }
     }
+    queueTableUpdate { rows.foreach(row => updateTableRow(row.data)) }
   }
-  private val obs = sortedCards.foreach { _ =>
-    state.ctx.asyncUiExec { viewer.refresh() }
+
+  private val sortObses = state.ctx.syncLuaExec {
+    Seq(cardsRx.foreach { case (view, _, columns) =>
+      if((view ne shownView) || (columns ne shownColumns)) {
+        if(view ne shownView) {
+          if(shownView != null) shownView.removeCardListListener(cardListListener)
+          view.addCardListListener(cardListListener)
+          watchedCards.values.foreach(_.kill())
+          watchedCards.clear()
+          shownView = view
+        }
+        shownColumns = columns
+        sortCache.clear()
+        updateSort()
+      } else if(sortOrder.now.isDefined) {
+        sortCache.clear()
+        updateSort()
+      }
+    }, sortOrder.triggerLater { updateSort() })
   }
   addDisposeListener(_ => {
     cardsRx.kill()
-    sortedCards.kill()
-    obs.kill()
+    sortObses.foreach(_.kill())
+    state.ctx.asyncLuaExec {
+      shownView.removeCardListListener(cardListListener)
+      watchedCards.values.foreach(_.kill())
+      watchedCards.clear()
+    }
   })
 
   // Setup viewer providers
-  viewer.setContentProvider(new IStructuredContentProvider {
-    override def getElements(o: scala.Any): Array[AnyRef] = sortedCards.now.toArray
+  viewer.setContentProvider(new ILazyContentProvider {
+    override def updateElement(i: Int): Unit = if(i < tableRows.length) viewer.replace(tableRows(i), i)
   })
   viewer.setLabelProvider(new LabelProvider with ITableLabelProvider {
     override def getColumnText(o: scala.Any, i: Int): String = {
       val row = o.asInstanceOf[RowData]
-      row.fields(i)
+      rowFields(row)(i)
     }
     override def getColumnImage(o: scala.Any, i: Int): Image = null
   })
   viewer.setInput(this)
+  applyTableUpdates()
 
   // This is a hack to deal with the fact that this panel losing focus sets the current card to None
   private var savedSelection: Seq[UUID] = _
@@ -164,10 +347,11 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
   def getSelectedCards: Array[RowData] =
     viewer.getStructuredSelection.toArray.map(_.asInstanceOf[RowData])
   def setSelection(uuid: UUID*): Unit = {
-    viewer.refresh()
+    applyTableUpdates()
+    // Select by index, as selecting elements through the viewer would fetch every row of the virtual table.
     val uuidSet = uuid.toSet
-    val selection = new StructuredSelection(sortedCards.now.filter(x => uuidSet.contains(x.id)).toArray[Object])
-    viewer.setSelection(selection, true)
+    viewer.getTable.setSelection(tableRows.indices.filter(i => uuidSet.contains(tableRows(i).id)).toArray)
+    viewer.getTable.showSelection()
     state.ctx.queueUpdate(state.currentCardSelection, uuid)
   }
 
@@ -182,17 +366,14 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
     setAccelerator(SWT.CTRL | 'V')
     override def run(): Unit = state.ctx.clipboard.getContents(CardTransfer) match {
       case transfer: CardTransferData =>
-        val ids = state.ctx.syncLuaExec {
-          for(card <- transfer.json) yield {
-            val (uuid, data) = state.project.cards.create()
-            data.deserialize(card.as[JsObject])
-            uuid
-          }
-        }
+        val ids = state.ctx.syncLuaExec { state.project.createCards(transfer.json.map(_.as[JsObject])) }
         setSelection(ids : _*)
       case _ =>
     }
   }
+  private val importCards = new Action(state.i18n.system("_princess.editor.importCards")) {
+    override def run(): Unit = ImportCardsDialog.open(state, state.currentView.now)
+  }
   private val export = new Action(state.i18n.system("_princess.editor.exportCard")) {
     override def run(): Unit =
       ExportCardsDialog.open(state, getSelectedCards.map(x => x.id -> x.data) : _*)
@@ -232,6 +413,7 @@ final class CardSelectorTableViewer(parent: Composite, state: EditorState)
       copy.setEnabled(areItemsSelected)
       menuManager.add(copy)
       menuManager.add(paste)
+      menuManager.add(importCards)
 
       menuManager.add(new Separator)
 
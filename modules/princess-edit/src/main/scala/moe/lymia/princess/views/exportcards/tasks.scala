@@ -24,6 +24,7 @@ package moe.lymia.princess.views.exportcards
 
 import moe.lymia.lua._
 import moe.lymia.princess.core.cardmodel.FullCardData
+import moe.lymia.princess.core.state.TaskPriority
 import moe.lymia.princess.svg.RasterizeResourceLoader
 import moe.lymia.princess.util.IOUtils
 import moe.lymia.princess.views.mainframe.MainFrameState
@@ -32,6 +33,9 @@ import org.eclipse.jface.operation.IRunnableWithProgress
 
 import java.nio.file.{Files, Path}
 import java.util.UUID
+import scala.collection.mutable
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future}
 
 final class ExportSingleTask[Options, Init](state: MainFrameState, outFile: Path,
                                             exportFormat: ExportFormat[Options, Init], exportData: Options,
@@ -56,20 +60,34 @@ final class ExportMultiTask[Options, Init](state: MainFrameState, outDir: Path,
     val init = exportFormat.initRender(state)
 
     IOUtils.withTemporaryDirectory("princess-edit-export-") { temp =>
-      for((id, target) <- exportTargets) {
-        val name = exportFormat.addExtension(state.ctx.syncLuaExec(
+      // Lua rendering is serialized on the Lua thread, but rasterizing and writing each card is handed off to the
+      // rasterizer pool. At most maxInFlight rendered cards are allowed to wait in memory at once.
+      val maxInFlight = state.ctx.rasterizerPoolSize * 2
+      val inFlight = new mutable.Queue[Future[Unit]]
+      var error: Throwable = null
+      def awaitOldest(): Unit =
+        Await.ready(inFlight.dequeue(), Duration.Inf).value.get.failed.foreach(e => if (error == null) error = e)
+
+      for((id, target) <- exportTargets if error == null) {
+        val name = exportFormat.addExtension(state.ctx.syncLuaExec(TaskPriority.Background,
           this.name.makeName(id.toString, target.luaData.now)
         ).left.get)
         progress.subTask(state.i18n.system("_princess.export.exportingTo", name))
 
-        val rendered = state.ctx.syncLuaExec(state.idData.renderer.render(
+        val rendered = state.ctx.syncLuaExec(TaskPriority.Background, state.idData.renderer.render(
           Seq(target.luaData.now), RasterizeResourceLoader
         ))
 
-        exportFormat.export(rendered, exportData, init, temp.resolve(name))
-
-        progress.worked(1)
+        if (inFlight.size >= maxInFlight) awaitOldest()
+        inFlight.enqueue(state.ctx.asyncRasterExec(TaskPriority.Background) {
+          exportFormat.export(rendered, exportData, init, temp.resolve(name))
+          progress.worked(1)
+        })
       }
+      // Wait for every task even after a failure, so none of them are still writing into the temporary directory
+      // when it is deleted.
+      while (inFlight.nonEmpty) awaitOldest()
+      if(error != null) throw error
 
       for(file <- IOUtils.list(temp)) Files.move(file, outDir.resolve(file.getFileName))
     }
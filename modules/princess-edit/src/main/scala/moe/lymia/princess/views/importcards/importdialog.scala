@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.views.importcards
+
+import moe.lymia.princess.core.cardmodel.{CardImportFormat, CardView}
+import moe.lymia.princess.util.swt.UIUtils
+import moe.lymia.princess.views.mainframe.MainFrameState
+import org.eclipse.jface.dialogs.ProgressMonitorDialog
+import org.eclipse.swt.SWT
+import org.eclipse.swt.widgets._
+
+import java.lang.reflect.InvocationTargetException
+import java.nio.file.Paths
+
+object ImportCardsDialog {
+  // Asks for a file to import cards from, and imports them into `view`.
+  def open(state: MainFrameState, view: CardView): Unit = {
+    val formats = CardImportFormat.allFormats
+    val selector = new FileDialog(state.shell.getShell, SWT.OPEN)
+    selector.setText(state.i18n.system("_princess.import.title"))
+    selector.setFilterNames((state.i18n.system("_princess.import.allFormats") +:
+                             formats.map(x => state.i18n.system(s"_princess.import.format.${x.extension}"))).toArray)
+    selector.setFilterExtensions((formats.map(x => s"*.${x.extension}").mkString(";") +:
+                                  formats.map(x => s"*.${x.extension}")).toArray)
+    selector.setFilterPath(Paths.get(".").toAbsolutePath.toString)
+    selector.open() match {
+      case null =>
+      case name =>
+        val path = Paths.get(name)
+        def showError(message: String) =
+          UIUtils.openMessage(state.shell, SWT.ICON_ERROR | SWT.OK, state.i18n, "_princess.import.failed",
+                              path.getFileName, message)
+        CardImportFormat.forPath(path) match {
+          case Some(format) =>
+            try new ProgressMonitorDialog(state.shell.getShell).run(true, true,
+                                                                   new ImportCardsTask(state, path, format, Some(view)))
+            catch {
+              case e: InvocationTargetException => showError(e.getCause.getMessage)
+            }
+          case None => showError(state.i18n.system("_princess.import.unsupportedFormat"))
+        }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017-2022 Lymia Alusyia <lymia@lymiahugs.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package moe.lymia.princess.views.importcards
+
+import moe.lymia.princess.core.cardmodel.{CardImportFormat, CardImporter, CardView}
+import moe.lymia.princess.views.mainframe.MainFrameState
+import org.eclipse.core.runtime.IProgressMonitor
+import org.eclipse.jface.operation.IRunnableWithProgress
+
+import java.nio.file.{Files, Path}
+
+final class ImportCardsTask(state: MainFrameState, file: Path, format: CardImportFormat, view: Option[CardView])
+  extends IRunnableWithProgress {
+
+  override def run(progress: IProgressMonitor): Unit = {
+    // The number of rows isn't known until the whole file has been read, so progress is measured in how much of the
+    // file has been read instead.
+    val size = math.max(Files.size(file), 1L)
+    progress.beginTask(state.i18n.system("_princess.import.taskName", file.getFileName), ImportCardsTask.TotalWork)
+    var worked = 0
+    CardImporter.importFile(state.project, file, format, view, (cards, bytes) => {
+      val newWorked = math.min(bytes * ImportCardsTask.TotalWork / size, ImportCardsTask.TotalWork.toLong).toInt
+      progress.worked(newWorked - worked)
+      progress.subTask(state.i18n.system("_princess.import.importedCards", cards))
+      worked = newWorked
+      !progress.isCanceled
+    })
+    progress.done()
+  }
+}
+object ImportCardsTask {
+  private val TotalWork = 1000
+}
@@ -23,7 +23,7 @@
 package moe.lymia.princess.views.mainframe
 
 import moe.lymia.princess.VersionInfo
-import moe.lymia.princess.core.cardmodel.{GameIDData, Project, ProjectMetadata}
+import moe.lymia.princess.core.cardmodel.{GameIDData, Project, ProjectJournal, ProjectMetadata}
 import moe.lymia.princess.core.gamedata.{GameData, GameDataLoader, GameId, I18N, I18NLoader}
 import moe.lymia.princess.core.state.{GuiContext, Settings, SettingsStore, UnbackedSettingsStore}
 import moe.lymia.princess.editor.scripting.EditorModule
@@ -41,7 +41,9 @@ import org.eclipse.swt.layout._
 import org.eclipse.swt.widgets._
 import rx._
 
-import java.nio.file.{Path, Paths}
+import java.nio.file.{AtomicMoveNotSupportedException, Files, Path, Paths, StandardCopyOption}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, Executors, Future, TimeUnit}
 
 final case class UnsavedChanges(since: Long)
 final class MainFrameState(private val mainFrame: MainFrame, val ctx: GuiContext,
@@ -92,14 +94,34 @@ final class MainFrameState(private val mainFrame: MainFrame, val ctx: GuiContext
 
   @volatile private var unsavedChangesExist: Boolean = false
   @volatile private var lastUnsavedChange: Long = 0
+  // Counts the changes made, so a save only marks the project saved if nothing changed after it took its snapshot.
+  private var changeCount: Long = 0
   def hasUnsavedChanges: Option[UnsavedChanges] = if(unsavedChangesExist) Some(UnsavedChanges(lastUnsavedChange)) else None
   def needsSaving(): Unit = {
-    if(!unsavedChangesExist) lastUnsavedChange = System.currentTimeMillis()
-    unsavedChangesExist = true
+    synchronized {
+      if(!unsavedChangesExist) lastUnsavedChange = System.currentTimeMillis()
+      unsavedChangesExist = true
+      changeCount += 1
+    }
+    mainFrame.updateTitle()
+  }
+  private def markSaved(savedChangeCount: Long): Unit = {
+    synchronized { if(changeCount == savedChangeCount) unsavedChangesExist = false }
     mainFrame.updateTitle()
   }
+  // Set when the user chooses to close the window without saving.
+  @volatile private var discardingChanges = false
+  def discardUnsavedChanges(): Unit = discardingChanges = true
   project.addModifyListener(() => needsSaving())
 
+  // Edits made since the last save are journaled next to the project file, and replayed here if PrincessEdit exited
+  // without saving them.
+  private var journal: Option[ProjectJournal] = projectSource match {
+    case ProjectSource.OpenProject(path, _, _) =>
+      Some(ctx.syncLuaExec(ProjectJournal.open(project, path, replay = true)))
+    case _ => None
+  }
+
   private def chooseSaveLocation() = {
     val selector = new FileDialog(mainFrame.getShell, SWT.SAVE)
     selector.setFileName(getSaveName)
@@ -114,15 +136,87 @@ final class MainFrameState(private val mainFrame: MainFrame, val ctx: GuiContext
         setSaveLocation(Some(Paths.get(target)))
     }
   }
-  private def doSave(): Unit = {
-    val fs = IOUtils.openZip(getSaveLocation.get, create = true)
-    try project.writeTo(fs.getPath("/")) finally fs.close()
-    unsavedChangesExist = false
+  // The file the project was last read from or successfully written to. Saving back to it only writes what changed.
+  private var syncedLocation: Option[Path] = projectSource match {
+    case ProjectSource.OpenProject(path, _, _) => Some(path)
+    case _ => None
+  }
+  // Saves are written on their own thread from a snapshot of the project, so neither the UI thread nor the Lua thread
+  // waits on the disk. They run one at a time, in the order they were requested.
+  private val saveExecutor = Executors.newSingleThreadExecutor { task =>
+    val thread = new Thread(task, "PrincessEdit save thread")
+    thread.setDaemon(true)
+    thread
+  }
+  private val pendingSaves = new AtomicInteger(0)
+  @volatile private var saveProgress0: Option[Int] = None
+  def saveProgress: Option[Int] = saveProgress0
+
+  private def writeProject(location: Path): Unit = {
+    val incremental = syncedLocation.contains(location) && Files.exists(location)
+    val journalMark = journal.filter(_.path == ProjectJournal.pathFor(location)).map(_.mark())
+    val (snapshot, savedChangeCount) = ctx.syncLuaExec {
+      (project.snapshot(), synchronized(changeCount))
+    }
+    syncedLocation = None // if this save fails, the next one must write everything
+
+    // written next to the project and moved over it, so the project file is never left half written
+    val temp = IOUtils.mapFileName(location, x => s".$x.saving")
+    if(incremental) Files.copy(location, temp, StandardCopyOption.REPLACE_EXISTING) else Files.deleteIfExists(temp)
+    try {
+      val fs = IOUtils.openZip(temp, create = true)
+      try {
+        val progress = (percent: Int) => {
+          saveProgress0 = Some(percent)
+          mainFrame.updateTitle()
+        }
+        val root = fs.getPath("/")
+        if(incremental) snapshot.writeChangesTo(root, progress) else snapshot.writeTo(root, progress)
+      } finally fs.close()
+      try Files.move(temp, location, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING) catch {
+        case _: AtomicMoveNotSupportedException => Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING)
+      }
+    } finally Files.deleteIfExists(temp)
+    syncedLocation = Some(location)
+    markSaved(savedChangeCount)
+
+    journalMark match {
+      case Some(mark) => journal.foreach(_.compact(mark))
+      case None =>
+        journal.foreach(_.close(delete = true))
+        journal = Some(ctx.syncLuaExec(ProjectJournal.open(project, location, replay = false)))
+    }
+  }
+  private def doSave(): Future[Boolean] = {
+    val location = getSaveLocation.get
+    pendingSaves.incrementAndGet()
+    saveProgress0 = Some(0)
     mainFrame.updateTitle()
+    val task: Callable[Boolean] = () =>
+      try {
+        writeProject(location)
+        true
+      } catch {
+        case e: Exception =>
+          e.printStackTrace()
+          needsSaving()
+          ctx.asyncUiExec {
+            val shell = mainFrame.getShell
+            if(shell != null && !shell.isDisposed)
+              UIUtils.openMessage(mainFrame, SWT.ICON_ERROR | SWT.OK, i18n, "_princess.main.saveFailed",
+                                  location.getFileName.toString, e.toString)
+          }
+          false
+      } finally {
+        if(pendingSaves.decrementAndGet() == 0) saveProgress0 = None
+        mainFrame.updateTitle()
+      }
+    saveExecutor.submit(task)
   }
-  def save(): Boolean = if(getSaveLocation.isDefined || chooseSaveLocation()) {
-    doSave()
-    true
+  // With `waitForSave` set, this only returns once the save is written, and returns false if it fails.
+  def save(waitForSave: Boolean = false): Boolean = if(getSaveLocation.isDefined || chooseSaveLocation()) {
+    val result = doSave()
+    !waitForSave || result.get()
   } else false
   def saveAs(): Boolean = if(chooseSaveLocation()) {
     doSave()
@@ -135,7 +229,11 @@ final class MainFrameState(private val mainFrame: MainFrame, val ctx: GuiContext
     mainFrame.tabFolder.openTab(id, data)
 
   def dispose(): Unit = {
-
+    saveExecutor.shutdown()
+    saveExecutor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    // Edits the user chose to discard shouldn't be replayed either. If a save failed, the journal is all that's left
+    // of the edits it was meant to save, so it's kept for the next time the project is opened.
+    journal.foreach(_.close(delete = discardingChanges || hasUnsavedChanges.isEmpty))
   }
 }
 
@@ -151,7 +249,7 @@ object ProjectSource {
     override def getGameID: String = meta.gameId
     override def openSettings(project: Project): SettingsStore = Settings.getProjectSettings(path, project.uuid)
     override def openProject(ctx: GuiContext, gameID: String, idData: GameIDData): Project =
-      ctx.syncLuaExec(Project.loadProject(ctx, gameID, idData, path))
+      Project.loadProject(ctx, gameID, idData, path)
     override def setSaveLocation(state: MainFrameState): Unit = state.setSaveLocation(Some(path), Some(lock))
   }
   case class NewProject(id: GameId) extends ProjectSource {
@@ -181,7 +279,8 @@ final class MainFrame(ctx: GuiContext, projectSource: ProjectSource) extends Win
   def updateTitle(shell: Shell = getShell): Unit =
     ctx.asyncUiExec {
       if(shell != null && !shell.isDisposed)
-        shell.setText(s"${if(state.hasUnsavedChanges.isDefined) "*" else ""}${state.getSaveName} - PrincessEdit")
+        shell.setText(s"${if(state.hasUnsavedChanges.isDefined) "*" else ""}${state.getSaveName}" +
+                      s"${state.saveProgress.fold("")(state.i18n.system("_princess.main.saving", _))} - PrincessEdit")
     }
 
   private val platformButtonOrder = SWT.getPlatform match {
@@ -206,8 +305,10 @@ final class MainFrame(ctx: GuiContext, projectSource: ProjectSource) extends Win
           "_princess.main.confirmSave", state.getSaveName, timeName)
         if(result != SWT.DEFAULT) platformButtonOrder(result) match {
           case 1 => // cancel
-          case 0 => super.handleShellCloseEvent() // close without saving
-          case 2 => if(state.save()) super.handleShellCloseEvent()
+          case 0 => // close without saving
+            state.discardUnsavedChanges()
+            super.handleShellCloseEvent()
+          case 2 => if(state.save(waitForSave = true)) super.handleShellCloseEvent()
         }
       case None =>
         super.handleShellCloseEvent()
@@ -77,6 +77,6 @@ function cardColumns()
     local text = ui.Column("$cah.text", 400, function(card) return card.text end, nil, true)
     local cardType = ui.Column("$cah.cardType", 75,
         function(card) return i18n(card.isBlack and "cah.black" or "cah.white") end,
-        function(a, b) return (a.isBlack and 1 or 0) - (b.isBlack and 1 or 0) end, true)
+        nil, true, function(card) return card.isBlack and 1 or 0 end)
     return { text, cardType }
 end
\ No newline at end of file